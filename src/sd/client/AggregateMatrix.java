@@ -0,0 +1,40 @@
+package sd.client;
+
+import java.util.List;
+
+public class AggregateMatrix {
+    private final List<String> productIds;
+    private final byte[] aggTypes;
+    private final double[][] values;
+
+    AggregateMatrix(List<String> productIds, byte[] aggTypes, double[][] values) {
+        this.productIds = productIds;
+        this.aggTypes = aggTypes;
+        this.values = values;
+    }
+
+    public List<String> getProductIds() {
+        return productIds;
+    }
+
+    public byte[] getAggTypes() {
+        return aggTypes.clone();
+    }
+
+    public double get(int productIndex, byte aggType) {
+        return values[productIndex][column(aggType)];
+    }
+
+    public double get(String productId, byte aggType) {
+        int row = productIds.indexOf(productId);
+        if (row < 0) throw new IllegalArgumentException("Product not requested: " + productId);
+        return get(row, aggType);
+    }
+
+    private int column(byte aggType) {
+        for (int i = 0; i < aggTypes.length; i++) {
+            if (aggTypes[i] == aggType) return i;
+        }
+        throw new IllegalArgumentException("Aggregation type not requested: " + aggType);
+    }
+}
@@ -0,0 +1,64 @@
+package sd.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class PendingTable<E extends PendingTable.Entry> {
+    static class Entry {
+        int requestId;
+    }
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, E> overflow = new ConcurrentHashMap<>();
+
+    PendingTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    int register(E entry) {
+        for (int attempt = 0; attempt <= mask; attempt++) {
+            int id = nextId.getAndIncrement();
+            entry.requestId = id;
+            if (slots.compareAndSet(id & mask, null, entry)) return id;
+        }
+        int id = nextId.getAndIncrement();
+        entry.requestId = id;
+        overflow.put(id, entry);
+        return id;
+    }
+
+    E get(int requestId) {
+        E entry = slots.get(requestId & mask);
+        if (entry != null && entry.requestId == requestId) return entry;
+        if (overflow.isEmpty()) return null;
+        return overflow.get(requestId);
+    }
+
+    E remove(int requestId) {
+        int index = requestId & mask;
+        E entry = slots.get(index);
+        if (entry != null && entry.requestId == requestId && slots.compareAndSet(index, entry, null)) return entry;
+        if (overflow.isEmpty()) return null;
+        return overflow.remove(requestId);
+    }
+
+    List<E> drain() {
+        List<E> drained = new ArrayList<>();
+        for (int i = 0; i <= mask; i++) {
+            E entry = slots.getAndSet(i, null);
+            if (entry != null) drained.add(entry);
+        }
+        for (Integer id : overflow.keySet()) {
+            E entry = overflow.remove(id);
+            if (entry != null) drained.add(entry);
+        }
+        return drained;
+    }
+}
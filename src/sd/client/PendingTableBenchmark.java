@@ -0,0 +1,110 @@
+package sd.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PendingTableBenchmark {
+    private static final int WINDOW = 64;
+
+    private static volatile boolean running;
+    private static long sink;
+
+    private interface Table {
+        int register(PendingTable.Entry entry);
+
+        PendingTable.Entry remove(int requestId);
+    }
+
+    private static final class LockedTable implements Table {
+        private final Object lock = new Object();
+        private final Map<Integer, PendingTable.Entry> pending = new HashMap<>();
+        private int nextRequestId = 1;
+
+        private synchronized int newRequestId() {
+            return nextRequestId++;
+        }
+
+        @Override
+        public int register(PendingTable.Entry entry) {
+            int id = newRequestId();
+            synchronized (lock) {
+                pending.put(id, entry);
+            }
+            return id;
+        }
+
+        @Override
+        public PendingTable.Entry remove(int requestId) {
+            synchronized (lock) {
+                return pending.remove(requestId);
+            }
+        }
+    }
+
+    private static final class RingTable implements Table {
+        private final PendingTable<PendingTable.Entry> table = new PendingTable<>(4096);
+
+        @Override
+        public int register(PendingTable.Entry entry) {
+            return table.register(entry);
+        }
+
+        @Override
+        public PendingTable.Entry remove(int requestId) {
+            return table.remove(requestId);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int[] threadCounts = {1, 4, 16};
+
+        System.out.println("Pending table benchmark: window=" + WINDOW + ", " + seconds + "s per run");
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            for (int threads : threadCounts) {
+                run("locked", new LockedTable(), threads, seconds, report);
+                run("ring", new RingTable(), threads, seconds, report);
+            }
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    private static void run(String name, final Table table, int threads, int seconds, boolean report)
+            throws InterruptedException {
+        final long[] counts = new long[threads];
+        Thread[] workers = new Thread[threads];
+        running = true;
+        for (int t = 0; t < threads; t++) {
+            final int tid = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    PendingTable.Entry[] entries = new PendingTable.Entry[WINDOW];
+                    for (int i = 0; i < WINDOW; i++) entries[i] = new PendingTable.Entry();
+                    int[] ids = new int[WINDOW];
+                    long n = 0;
+                    long found = 0;
+                    while (running) {
+                        for (int i = 0; i < WINDOW; i++) ids[i] = table.register(entries[i]);
+                        for (int i = 0; i < WINDOW; i++) {
+                            if (table.remove(ids[i]) != null) found++;
+                        }
+                        n += WINDOW;
+                    }
+                    counts[tid] = n;
+                    sink += found;
+                }
+            }, "bench-pending-" + t);
+        }
+        for (Thread t : workers) t.start();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread t : workers) t.join();
+
+        if (!report) return;
+        long total = 0;
+        for (long c : counts) total += c;
+        System.out.println(String.format("%-6s threads=%-3d %12.0f register+remove/s", name, threads, total / (double) seconds));
+    }
+}
@@ -3,32 +3,45 @@ package sd.client;
 import sd.common.ProtocolConstants;
 import sd.common.SaleEvent;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class SalesClient {
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int PENDING_TABLE_CAPACITY = 4096;
+
     private final String host;
     private final int port;
+    private final long flushDelayNanos;
 
     private Socket socket;
     private DataInputStream in;
-    private DataOutputStream out;
+    private OutputStream out;
 
     private final Object writeLock = new Object();
-    private final Object pendingLock = new Object();
-    private final Map<Integer, Pending> pending = new HashMap<>();
+    private final ArrayDeque<byte[]> outbox = new ArrayDeque<>();
+    private final PendingTable<Pending> pending = new PendingTable<>(PENDING_TABLE_CAPACITY);
 
     private volatile boolean loggedIn;
     private volatile boolean closed;
-    private int nextRequestId = 1;
     private Thread readerThread;
+    private Thread writerThread;
 
     private void logIOException(String where, IOException e) {
         System.err.println(where + ": " + e.getMessage());
@@ -43,20 +56,77 @@ public class SalesClient {
         Object parse(DataInputStream in) throws IOException;
     }
 
-    private static final class Pending {
+    private interface ChunkParser {
+        void parse(DataInputStream in) throws IOException;
+    }
+
+    private static final class Pending extends PendingTable.Entry {
         final ResponseParser parser;
-        boolean done;
+        final ChunkParser chunks;
+        final CompletableFuture<Pending> future = new CompletableFuture<>();
         byte status;
         Object value;
 
-        Pending(ResponseParser parser) {
+        Pending(ResponseParser parser, ChunkParser chunks) {
             this.parser = parser;
+            this.chunks = chunks;
+        }
+
+        void complete(byte status, Object value) {
+            this.status = status;
+            this.value = value;
+            future.complete(this);
+        }
+    }
+
+    private static final class EventChunkParser implements ChunkParser {
+        final int day;
+        final Consumer<SaleEvent> consumer;
+        final List<String> products = new ArrayList<>();
+        long delivered;
+        RuntimeException failure;
+
+        EventChunkParser(int day, Consumer<SaleEvent> consumer) {
+            this.day = day;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void parse(DataInputStream in) throws IOException {
+            int numProducts = in.readInt();
+            for (int i = 0; i < numProducts; i++) products.add(in.readUTF());
+
+            int numEvents = in.readInt();
+            for (int i = 0; i < numEvents; i++) {
+                int productIndex = in.readInt();
+                int quantity = in.readInt();
+                double price = in.readDouble();
+                if (failure != null) continue;
+                try {
+                    consumer.accept(new SaleEvent(products.get(productIndex), quantity, price, day));
+                    delivered++;
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
         }
     }
 
+    private static final Function<Pending, Boolean> IS_OK = new Function<Pending, Boolean>() {
+        @Override
+        public Boolean apply(Pending p) {
+            return p.status == ProtocolConstants.STATUS_OK;
+        }
+    };
+
     public SalesClient(String host, int port) {
+        this(host, port, 0);
+    }
+
+    public SalesClient(String host, int port, long flushDelayMicros) {
         this.host = host;
         this.port = port;
+        this.flushDelayNanos = Math.max(0, flushDelayMicros) * 1000L;
         this.loggedIn = false;
         this.closed = false;
     }
@@ -65,12 +135,12 @@ public class SalesClient {
         if (socket != null) return;
 
         socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
         in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
+        out = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 
         closed = false;
         loggedIn = false;
-        nextRequestId = 1;
 
         readerThread = new Thread(new Runnable() {
             @Override
@@ -80,71 +150,119 @@ public class SalesClient {
         });
         readerThread.setDaemon(true);
         readerThread.start();
+
+        final Socket target = socket;
+        final OutputStream stream = out;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(target, stream);
+            }
+        });
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
 
     public boolean isLoggedIn() {
         return loggedIn;
     }
 
-    private synchronized int newRequestId() {
-        return nextRequestId++;
+    public boolean isClosed() {
+        return closed || socket == null;
     }
 
-    private Pending send(byte opcode, RequestWriter writer, ResponseParser parser) throws IOException {
-        if (socket == null || out == null || in == null) throw new IOException("Not connected");
-        if (closed) throw new IOException("Closed");
-
-        int reqId = newRequestId();
-        Pending p = new Pending(parser);
+    private CompletableFuture<Pending> send(byte opcode, RequestWriter writer, ResponseParser parser) {
+        return send(opcode, writer, parser, null);
+    }
 
-        synchronized (pendingLock) {
-            pending.put(reqId, p);
+    private CompletableFuture<Pending> send(byte opcode, RequestWriter writer, ResponseParser parser, ChunkParser chunks) {
+        Pending p = new Pending(parser, chunks);
+        if (socket == null || out == null || in == null) {
+            p.future.completeExceptionally(new IOException("Not connected"));
+            return p.future;
+        }
+        if (closed) {
+            p.future.completeExceptionally(new IOException("Closed"));
+            return p.future;
         }
 
+        int reqId = pending.register(p);
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
         try {
-            synchronized (writeLock) {
-                out.writeInt(reqId);
-                out.writeByte(opcode);
-                if (writer != null) writer.write(out);
-                out.flush();
-            }
+            DataOutputStream data = new DataOutputStream(frame);
+            data.writeInt(reqId);
+            data.writeByte(opcode);
+            if (writer != null) writer.write(data);
         } catch (IOException e) {
-            synchronized (pendingLock) {
-                pending.remove(reqId);
-            }
-            throw e;
+            pending.remove(reqId);
+            p.future.completeExceptionally(e);
+            return p.future;
         }
 
-        synchronized (p) {
-            while (!p.done) {
-                try {
-                    p.wait();
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt();
-                    synchronized (pendingLock) {
-                        pending.remove(reqId);
+        synchronized (writeLock) {
+            outbox.addLast(frame.toByteArray());
+            if (outbox.size() == 1) writeLock.notify();
+        }
+
+        return p.future;
+    }
+
+    private void writeLoop(Socket target, OutputStream stream) {
+        List<byte[]> batch = new ArrayList<>();
+        long unflushedSince = 0;
+        try {
+            while (true) {
+                synchronized (writeLock) {
+                    while (outbox.isEmpty() && !closed) writeLock.wait();
+                    if (outbox.isEmpty()) return;
+                    batch.addAll(outbox);
+                    outbox.clear();
+                }
+
+                if (unflushedSince == 0) unflushedSince = System.nanoTime();
+                for (byte[] frame : batch) stream.write(frame);
+                batch.clear();
+
+                boolean more;
+                synchronized (writeLock) {
+                    if (outbox.isEmpty() && flushDelayNanos > 0 && !closed) {
+                        long left = flushDelayNanos - (System.nanoTime() - unflushedSince);
+                        if (left > 0) writeLock.wait(left / 1_000_000L, (int) (left % 1_000_000L));
                     }
-                    throw new IOException("Interrupted");
+                    more = !outbox.isEmpty();
+                }
+                if (!more || System.nanoTime() - unflushedSince >= flushDelayNanos) {
+                    stream.flush();
+                    unflushedSince = 0;
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closed) logIOException("SalesClient.writeLoop", e);
+            try {
+                target.close();
+            } catch (IOException closeFailure) {
+                logIOException("SalesClient.writeLoop.close", closeFailure);
+            }
         }
+    }
 
-        return p;
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
     }
 
     private void finishAllPendingAsClosed() {
-        List<Pending> toNotify = new ArrayList<>();
-        synchronized (pendingLock) {
-            toNotify.addAll(pending.values());
-            pending.clear();
-        }
-        for (Pending p : toNotify) {
-            synchronized (p) {
-                p.status = ProtocolConstants.STATUS_ERROR;
-                p.done = true;
-                p.notifyAll();
-            }
-        }
+        for (Pending p : pending.drain()) p.complete(ProtocolConstants.STATUS_ERROR, null);
     }
 
     private void readLoop() {
@@ -159,11 +277,18 @@ public class SalesClient {
                     break;
                 }
 
-                Pending p;
-                synchronized (pendingLock) {
-                    p = pending.remove(reqId);
+                if (status == ProtocolConstants.STATUS_CHUNK) {
+                    Pending streaming = pending.get(reqId);
+                    if (streaming == null || streaming.chunks == null) {
+                        closed = true;
+                        break;
+                    }
+                    streaming.chunks.parse(in);
+                    continue;
                 }
 
+                Pending p = pending.remove(reqId);
+
                 if (p == null) {
                     closed = true;
                     break;
@@ -183,12 +308,7 @@ public class SalesClient {
                     }
                 }
 
-                synchronized (p) {
-                    p.status = status;
-                    p.value = value;
-                    p.done = true;
-                    p.notifyAll();
-                }
+                p.complete(status, value);
             }
         } catch (IOException e) {
             logIOException("SalesClient.readLoop", e);
@@ -203,51 +323,115 @@ public class SalesClient {
         }
     }
 
-    public boolean register(final String username, final String password) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_REGISTER, new RequestWriter() {
+    public boolean register(String username, String password) throws IOException {
+        return await(registerAsync(username, password));
+    }
+
+    public CompletableFuture<Boolean> registerAsync(final String username, final String password) {
+        return send(ProtocolConstants.MSG_REGISTER, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeUTF(username);
                 out.writeUTF(password);
             }
-        }, null);
-        return p.status == ProtocolConstants.STATUS_OK;
+        }, null).thenApply(IS_OK);
+    }
+
+    public boolean login(String username, String password) throws IOException {
+        return await(loginAsync(username, password));
     }
 
-    public boolean login(final String username, final String password) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_LOGIN, new RequestWriter() {
+    public CompletableFuture<Boolean> loginAsync(final String username, final String password) {
+        return send(ProtocolConstants.MSG_LOGIN, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeUTF(username);
                 out.writeUTF(password);
             }
-        }, null);
-        boolean ok = p.status == ProtocolConstants.STATUS_OK;
-        if (ok) loggedIn = true;
-        return ok;
+        }, null).thenApply(new Function<Pending, Boolean>() {
+            @Override
+            public Boolean apply(Pending p) {
+                boolean ok = p.status == ProtocolConstants.STATUS_OK;
+                if (ok) loggedIn = true;
+                return ok;
+            }
+        });
     }
 
     public boolean logout() throws IOException {
-        Pending p = send(ProtocolConstants.MSG_LOGOUT, null, null);
-        boolean ok = p.status == ProtocolConstants.STATUS_OK;
-        if (ok) loggedIn = false;
-        return ok;
+        return await(logoutAsync());
+    }
+
+    public CompletableFuture<Boolean> logoutAsync() {
+        return send(ProtocolConstants.MSG_LOGOUT, null, null).thenApply(new Function<Pending, Boolean>() {
+            @Override
+            public Boolean apply(Pending p) {
+                boolean ok = p.status == ProtocolConstants.STATUS_OK;
+                if (ok) loggedIn = false;
+                return ok;
+            }
+        });
+    }
+
+    public boolean addSale(String productId, int quantity, double price) throws IOException {
+        return await(addSaleAsync(productId, quantity, price));
     }
 
-    public boolean addSale(final String productId, final int quantity, final double price) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_ADD_SALE, new RequestWriter() {
+    public CompletableFuture<Boolean> addSaleAsync(final String productId, final int quantity, final double price) {
+        return send(ProtocolConstants.MSG_ADD_SALE, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeUTF(productId);
                 out.writeInt(quantity);
                 out.writeDouble(price);
             }
-        }, null);
-        return p.status == ProtocolConstants.STATUS_OK;
+        }, null).thenApply(IS_OK);
+    }
+
+    public boolean[] addSales(List<SaleEvent> sales) throws IOException {
+        return await(addSalesAsync(sales));
+    }
+
+    public CompletableFuture<boolean[]> addSalesAsync(final List<SaleEvent> sales) {
+        final Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (SaleEvent e : sales) {
+            if (!dictionary.containsKey(e.getProductId())) dictionary.put(e.getProductId(), dictionary.size());
+        }
+        final int count = sales.size();
+
+        return send(ProtocolConstants.MSG_ADD_SALES, new RequestWriter() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(dictionary.size());
+                for (String prod : dictionary.keySet()) out.writeUTF(prod);
+                out.writeInt(sales.size());
+                for (SaleEvent e : sales) {
+                    out.writeInt(dictionary.get(e.getProductId()));
+                    out.writeInt(e.getQuantity());
+                    out.writeDouble(e.getPrice());
+                }
+            }
+        }, new ResponseParser() {
+            @Override
+            public Object parse(DataInputStream in) throws IOException {
+                int n = in.readInt();
+                byte[] bitmap = new byte[(n + 7) / 8];
+                in.readFully(bitmap);
+                boolean[] accepted = new boolean[n];
+                for (int i = 0; i < n; i++) accepted[i] = (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+                return accepted;
+            }
+        }).thenApply(new Function<Pending, boolean[]>() {
+            @Override
+            public boolean[] apply(Pending p) {
+                if (p.status != ProtocolConstants.STATUS_OK) return new boolean[count];
+                return (boolean[]) p.value;
+            }
+        });
     }
 
-    private double aggregate(final byte aggType, final String productId, final int lastDays) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_AGGREGATE, new RequestWriter() {
+    private CompletableFuture<Double> aggregate(final byte aggType, final String productId, final int lastDays) {
+        return send(ProtocolConstants.MSG_AGGREGATE, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeByte(aggType);
@@ -259,35 +443,111 @@ public class SalesClient {
             public Object parse(DataInputStream in) throws IOException {
                 return in.readDouble();
             }
+        }).thenApply(new Function<Pending, Double>() {
+            @Override
+            public Double apply(Pending p) {
+                if (p.status != ProtocolConstants.STATUS_OK) return 0.0;
+                return (Double) p.value;
+            }
         });
-
-        if (p.status != ProtocolConstants.STATUS_OK) return 0.0;
-        return ((Double) p.value).doubleValue();
     }
 
     public double aggregateQuantity(String productId, int lastDays) throws IOException {
+        return await(aggregateQuantityAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateQuantityAsync(String productId, int lastDays) {
         return aggregate(ProtocolConstants.AGG_QUANTITY, productId, lastDays);
     }
 
     public double aggregateVolume(String productId, int lastDays) throws IOException {
+        return await(aggregateVolumeAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateVolumeAsync(String productId, int lastDays) {
         return aggregate(ProtocolConstants.AGG_VOLUME, productId, lastDays);
     }
 
     public double aggregateAveragePrice(String productId, int lastDays) throws IOException {
+        return await(aggregateAveragePriceAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateAveragePriceAsync(String productId, int lastDays) {
         return aggregate(ProtocolConstants.AGG_AVG_PRICE, productId, lastDays);
     }
 
     public double aggregateMaxPrice(String productId, int lastDays) throws IOException {
+        return await(aggregateMaxPriceAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateMaxPriceAsync(String productId, int lastDays) {
         return aggregate(ProtocolConstants.AGG_MAX_PRICE, productId, lastDays);
     }
 
+    public AggregateMatrix aggregateMany(List<String> productIds, int lastDays, byte... aggTypes) throws IOException {
+        return await(aggregateManyAsync(productIds, lastDays, aggTypes));
+    }
+
+    public CompletableFuture<AggregateMatrix> aggregateManyAsync(final List<String> productIds, final int lastDays, byte... aggTypes) {
+        int bits = 0;
+        for (byte t : aggTypes) {
+            if (t < ProtocolConstants.AGG_QUANTITY || t > ProtocolConstants.AGG_MAX_PRICE) {
+                throw new IllegalArgumentException("Unknown aggregation type " + t);
+            }
+            bits |= 1 << (t - 1);
+        }
+        final int mask = bits;
+        final byte[] columns = new byte[Integer.bitCount(mask)];
+        int k = 0;
+        for (byte t = ProtocolConstants.AGG_QUANTITY; t <= ProtocolConstants.AGG_MAX_PRICE; t++) {
+            if ((mask & (1 << (t - 1))) != 0) columns[k++] = t;
+        }
+        final List<String> rows = new ArrayList<>(productIds);
+
+        return send(ProtocolConstants.MSG_AGGREGATE_MULTI, new RequestWriter() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeByte(mask);
+                out.writeInt(rows.size());
+                for (String prod : rows) out.writeUTF(prod);
+                out.writeInt(lastDays);
+            }
+        }, new ResponseParser() {
+            @Override
+            public Object parse(DataInputStream in) throws IOException {
+                int numRows = in.readInt();
+                int numColumns = in.readInt();
+                double[][] values = new double[numRows][numColumns];
+                for (int i = 0; i < numRows; i++) {
+                    for (int j = 0; j < numColumns; j++) values[i][j] = in.readDouble();
+                }
+                return values;
+            }
+        }).thenApply(new Function<Pending, AggregateMatrix>() {
+            @Override
+            public AggregateMatrix apply(Pending p) {
+                if (p.status != ProtocolConstants.STATUS_OK) {
+                    return new AggregateMatrix(rows, columns, new double[rows.size()][columns.length]);
+                }
+                return new AggregateMatrix(rows, columns, (double[][]) p.value);
+            }
+        });
+    }
+
     public boolean nextDay() throws IOException {
-        Pending p = send(ProtocolConstants.MSG_NEW_DAY, null, null);
-        return p.status == ProtocolConstants.STATUS_OK;
+        return await(nextDayAsync());
+    }
+
+    public CompletableFuture<Boolean> nextDayAsync() {
+        return send(ProtocolConstants.MSG_NEW_DAY, null, null).thenApply(IS_OK);
+    }
+
+    public List<SaleEvent> filterEvents(int day, List<String> productIds) throws IOException {
+        return await(filterEventsAsync(day, productIds));
     }
 
-    public List<SaleEvent> filterEvents(final int day, final List<String> productIds) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_FILTER_EVENTS, new RequestWriter() {
+    public CompletableFuture<List<SaleEvent>> filterEventsAsync(final int day, final List<String> productIds) {
+        return send(ProtocolConstants.MSG_FILTER_EVENTS, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeInt(day);
@@ -312,16 +572,51 @@ public class SalesClient {
                 }
                 return result;
             }
+        }).thenApply(new Function<Pending, List<SaleEvent>>() {
+            @Override
+            public List<SaleEvent> apply(Pending p) {
+                if (p.status != ProtocolConstants.STATUS_OK) return new ArrayList<>();
+                @SuppressWarnings("unchecked")
+                List<SaleEvent> res = (List<SaleEvent>) p.value;
+                return res;
+            }
+        });
+    }
+
+    public long filterEventsStream(int day, List<String> productIds, Consumer<SaleEvent> consumer) throws IOException {
+        return await(filterEventsStreamAsync(day, productIds, consumer));
+    }
+
+    public CompletableFuture<Long> filterEventsStreamAsync(final int day, final List<String> productIds, Consumer<SaleEvent> consumer) {
+        final EventChunkParser chunks = new EventChunkParser(day, consumer);
+        return send(ProtocolConstants.MSG_FILTER_EVENTS_STREAM, new RequestWriter() {
+            @Override
+            public void write(DataOutputStream out) throws IOException {
+                out.writeInt(day);
+                out.writeInt(productIds.size());
+                for (String prod : productIds) out.writeUTF(prod);
+            }
+        }, new ResponseParser() {
+            @Override
+            public Object parse(DataInputStream in) throws IOException {
+                return in.readLong();
+            }
+        }, chunks).thenApply(new Function<Pending, Long>() {
+            @Override
+            public Long apply(Pending p) {
+                if (chunks.failure != null) throw new CompletionException(chunks.failure);
+                if (p.status != ProtocolConstants.STATUS_OK) return -1L;
+                return chunks.delivered;
+            }
         });
+    }
 
-        if (p.status != ProtocolConstants.STATUS_OK) return new ArrayList<>();
-        @SuppressWarnings("unchecked")
-        List<SaleEvent> res = (List<SaleEvent>) p.value;
-        return res;
+    public boolean waitSimultaneous(String product1, String product2) throws IOException {
+        return await(waitSimultaneousAsync(product1, product2));
     }
 
-    public boolean waitSimultaneous(final String product1, final String product2) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_WAIT_SIMULTANEOUS, new RequestWriter() {
+    public CompletableFuture<Boolean> waitSimultaneousAsync(final String product1, final String product2) {
+        return send(ProtocolConstants.MSG_WAIT_SIMULTANEOUS, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeUTF(product1);
@@ -332,14 +627,21 @@ public class SalesClient {
             public Object parse(DataInputStream in) throws IOException {
                 return in.readBoolean();
             }
+        }).thenApply(new Function<Pending, Boolean>() {
+            @Override
+            public Boolean apply(Pending p) {
+                if (p.status != ProtocolConstants.STATUS_OK) return false;
+                return (Boolean) p.value;
+            }
         });
+    }
 
-        if (p.status != ProtocolConstants.STATUS_OK) return false;
-        return ((Boolean) p.value).booleanValue();
+    public String waitConsecutive(int count) throws IOException {
+        return await(waitConsecutiveAsync(count));
     }
 
-    public String waitConsecutive(final int count) throws IOException {
-        Pending p = send(ProtocolConstants.MSG_WAIT_CONSECUTIVE, new RequestWriter() {
+    public CompletableFuture<String> waitConsecutiveAsync(final int count) {
+        return send(ProtocolConstants.MSG_WAIT_CONSECUTIVE, new RequestWriter() {
             @Override
             public void write(DataOutputStream out) throws IOException {
                 out.writeInt(count);
@@ -351,14 +653,21 @@ public class SalesClient {
                 if (found) return in.readUTF();
                 return null;
             }
+        }).thenApply(new Function<Pending, String>() {
+            @Override
+            public String apply(Pending p) {
+                if (p.status != ProtocolConstants.STATUS_OK) return null;
+                return (String) p.value;
+            }
         });
-
-        if (p.status != ProtocolConstants.STATUS_OK) return null;
-        return (String) p.value;
     }
 
     public synchronized void close() throws IOException {
         closed = true;
+        synchronized (writeLock) {
+            outbox.clear();
+            writeLock.notifyAll();
+        }
         finishAllPendingAsClosed();
         if (socket != null) {
             socket.close();
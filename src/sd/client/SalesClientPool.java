@@ -0,0 +1,400 @@
+package sd.client;
+
+import sd.common.SaleEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class SalesClientPool {
+    public enum Routing {
+        ROUND_ROBIN,
+        LEAST_OUTSTANDING
+    }
+
+    private final String host;
+    private final int port;
+    private final Routing routing;
+    private final long flushDelayMicros;
+
+    private final AtomicReferenceArray<SalesClient> clients;
+    private final AtomicIntegerArray outstanding;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    private String username;
+    private String password;
+    private volatile boolean loggedIn;
+    private volatile boolean closed;
+
+    private interface Call<T> {
+        CompletableFuture<T> on(SalesClient client);
+    }
+
+    public SalesClientPool(String host, int port, int size) {
+        this(host, port, size, Routing.LEAST_OUTSTANDING, 0);
+    }
+
+    public SalesClientPool(String host, int port, int size, Routing routing, long flushDelayMicros) {
+        if (size <= 0) throw new IllegalArgumentException("size must be > 0");
+        this.host = host;
+        this.port = port;
+        this.routing = routing;
+        this.flushDelayMicros = flushDelayMicros;
+        this.clients = new AtomicReferenceArray<>(size);
+        this.outstanding = new AtomicIntegerArray(size);
+        this.loggedIn = false;
+        this.closed = false;
+    }
+
+    public void connect() throws IOException {
+        for (int i = 0; i < clients.length(); i++) live(i);
+    }
+
+    public int size() {
+        return clients.length();
+    }
+
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    private SalesClient live(int index) throws IOException {
+        SalesClient client = clients.get(index);
+        if (client != null && !client.isClosed()) return client;
+
+        synchronized (this) {
+            if (closed) throw new IOException("Closed");
+            client = clients.get(index);
+            if (client != null && !client.isClosed()) return client;
+
+            SalesClient replacement = new SalesClient(host, port, flushDelayMicros);
+            replacement.connect();
+            if (username != null && !replacement.login(username, password)) {
+                replacement.close();
+                throw new IOException("Login failed on replacement connection");
+            }
+            clients.set(index, replacement);
+            return replacement;
+        }
+    }
+
+    private int pick() {
+        int n = clients.length();
+        int start = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % n;
+        if (routing == Routing.ROUND_ROBIN) return start;
+
+        int best = start;
+        int bestLoad = outstanding.get(start);
+        for (int i = 1; i < n && bestLoad > 0; i++) {
+            int candidate = (start + i) % n;
+            int load = outstanding.get(candidate);
+            if (load < bestLoad) {
+                best = candidate;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    private <T> CompletableFuture<T> route(Call<T> call) {
+        final int index = pick();
+        SalesClient client;
+        try {
+            client = live(index);
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        outstanding.incrementAndGet(index);
+        CompletableFuture<T> result = call.on(client);
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T value, Throwable failure) {
+                outstanding.decrementAndGet(index);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<Boolean> broadcast(Call<Boolean> call) {
+        final List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < clients.length(); i++) {
+            SalesClient client;
+            try {
+                client = live(i);
+            } catch (IOException e) {
+                return failed(e);
+            }
+            results.add(call.on(client));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, Boolean>() {
+            @Override
+            public Boolean apply(Void ignored) {
+                for (CompletableFuture<Boolean> r : results) {
+                    if (!r.join()) return false;
+                }
+                return true;
+            }
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        f.completeExceptionally(cause);
+        return f;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    public boolean register(String username, String password) throws IOException {
+        return await(registerAsync(username, password));
+    }
+
+    public CompletableFuture<Boolean> registerAsync(final String username, final String password) {
+        return route(new Call<Boolean>() {
+            @Override
+            public CompletableFuture<Boolean> on(SalesClient client) {
+                return client.registerAsync(username, password);
+            }
+        });
+    }
+
+    public boolean login(String username, String password) throws IOException {
+        return await(loginAsync(username, password));
+    }
+
+    public CompletableFuture<Boolean> loginAsync(final String username, final String password) {
+        synchronized (this) {
+            this.username = username;
+            this.password = password;
+        }
+        return broadcast(new Call<Boolean>() {
+            @Override
+            public CompletableFuture<Boolean> on(SalesClient client) {
+                return client.loginAsync(username, password);
+            }
+        }).thenApply(new Function<Boolean, Boolean>() {
+            @Override
+            public Boolean apply(Boolean ok) {
+                loggedIn = ok;
+                return ok;
+            }
+        });
+    }
+
+    public boolean logout() throws IOException {
+        return await(logoutAsync());
+    }
+
+    public CompletableFuture<Boolean> logoutAsync() {
+        synchronized (this) {
+            username = null;
+            password = null;
+        }
+        return broadcast(new Call<Boolean>() {
+            @Override
+            public CompletableFuture<Boolean> on(SalesClient client) {
+                return client.logoutAsync();
+            }
+        }).thenApply(new Function<Boolean, Boolean>() {
+            @Override
+            public Boolean apply(Boolean ok) {
+                if (ok) loggedIn = false;
+                return ok;
+            }
+        });
+    }
+
+    public boolean addSale(String productId, int quantity, double price) throws IOException {
+        return await(addSaleAsync(productId, quantity, price));
+    }
+
+    public CompletableFuture<Boolean> addSaleAsync(final String productId, final int quantity, final double price) {
+        return route(new Call<Boolean>() {
+            @Override
+            public CompletableFuture<Boolean> on(SalesClient client) {
+                return client.addSaleAsync(productId, quantity, price);
+            }
+        });
+    }
+
+    public boolean[] addSales(List<SaleEvent> sales) throws IOException {
+        return await(addSalesAsync(sales));
+    }
+
+    public CompletableFuture<boolean[]> addSalesAsync(final List<SaleEvent> sales) {
+        return route(new Call<boolean[]>() {
+            @Override
+            public CompletableFuture<boolean[]> on(SalesClient client) {
+                return client.addSalesAsync(sales);
+            }
+        });
+    }
+
+    public double aggregateQuantity(String productId, int lastDays) throws IOException {
+        return await(aggregateQuantityAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateQuantityAsync(final String productId, final int lastDays) {
+        return route(new Call<Double>() {
+            @Override
+            public CompletableFuture<Double> on(SalesClient client) {
+                return client.aggregateQuantityAsync(productId, lastDays);
+            }
+        });
+    }
+
+    public double aggregateVolume(String productId, int lastDays) throws IOException {
+        return await(aggregateVolumeAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateVolumeAsync(final String productId, final int lastDays) {
+        return route(new Call<Double>() {
+            @Override
+            public CompletableFuture<Double> on(SalesClient client) {
+                return client.aggregateVolumeAsync(productId, lastDays);
+            }
+        });
+    }
+
+    public double aggregateAveragePrice(String productId, int lastDays) throws IOException {
+        return await(aggregateAveragePriceAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateAveragePriceAsync(final String productId, final int lastDays) {
+        return route(new Call<Double>() {
+            @Override
+            public CompletableFuture<Double> on(SalesClient client) {
+                return client.aggregateAveragePriceAsync(productId, lastDays);
+            }
+        });
+    }
+
+    public double aggregateMaxPrice(String productId, int lastDays) throws IOException {
+        return await(aggregateMaxPriceAsync(productId, lastDays));
+    }
+
+    public CompletableFuture<Double> aggregateMaxPriceAsync(final String productId, final int lastDays) {
+        return route(new Call<Double>() {
+            @Override
+            public CompletableFuture<Double> on(SalesClient client) {
+                return client.aggregateMaxPriceAsync(productId, lastDays);
+            }
+        });
+    }
+
+    public AggregateMatrix aggregateMany(List<String> productIds, int lastDays, byte... aggTypes) throws IOException {
+        return await(aggregateManyAsync(productIds, lastDays, aggTypes));
+    }
+
+    public CompletableFuture<AggregateMatrix> aggregateManyAsync(final List<String> productIds, final int lastDays, final byte... aggTypes) {
+        return route(new Call<AggregateMatrix>() {
+            @Override
+            public CompletableFuture<AggregateMatrix> on(SalesClient client) {
+                return client.aggregateManyAsync(productIds, lastDays, aggTypes);
+            }
+        });
+    }
+
+    public boolean nextDay() throws IOException {
+        return await(nextDayAsync());
+    }
+
+    public CompletableFuture<Boolean> nextDayAsync() {
+        return route(new Call<Boolean>() {
+            @Override
+            public CompletableFuture<Boolean> on(SalesClient client) {
+                return client.nextDayAsync();
+            }
+        });
+    }
+
+    public List<SaleEvent> filterEvents(int day, List<String> productIds) throws IOException {
+        return await(filterEventsAsync(day, productIds));
+    }
+
+    public CompletableFuture<List<SaleEvent>> filterEventsAsync(final int day, final List<String> productIds) {
+        return route(new Call<List<SaleEvent>>() {
+            @Override
+            public CompletableFuture<List<SaleEvent>> on(SalesClient client) {
+                return client.filterEventsAsync(day, productIds);
+            }
+        });
+    }
+
+    public long filterEventsStream(int day, List<String> productIds, Consumer<SaleEvent> consumer) throws IOException {
+        return await(filterEventsStreamAsync(day, productIds, consumer));
+    }
+
+    public CompletableFuture<Long> filterEventsStreamAsync(final int day, final List<String> productIds, final Consumer<SaleEvent> consumer) {
+        return route(new Call<Long>() {
+            @Override
+            public CompletableFuture<Long> on(SalesClient client) {
+                return client.filterEventsStreamAsync(day, productIds, consumer);
+            }
+        });
+    }
+
+    public boolean waitSimultaneous(String product1, String product2) throws IOException {
+        return await(waitSimultaneousAsync(product1, product2));
+    }
+
+    public CompletableFuture<Boolean> waitSimultaneousAsync(final String product1, final String product2) {
+        return route(new Call<Boolean>() {
+            @Override
+            public CompletableFuture<Boolean> on(SalesClient client) {
+                return client.waitSimultaneousAsync(product1, product2);
+            }
+        });
+    }
+
+    public String waitConsecutive(int count) throws IOException {
+        return await(waitConsecutiveAsync(count));
+    }
+
+    public CompletableFuture<String> waitConsecutiveAsync(final int count) {
+        return route(new Call<String>() {
+            @Override
+            public CompletableFuture<String> on(SalesClient client) {
+                return client.waitConsecutiveAsync(count);
+            }
+        });
+    }
+
+    public void close() throws IOException {
+        IOException first = null;
+        synchronized (this) {
+            closed = true;
+            loggedIn = false;
+        }
+        for (int i = 0; i < clients.length(); i++) {
+            SalesClient client = clients.getAndSet(i, null);
+            if (client == null) continue;
+            try {
+                client.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) throw first;
+    }
+}
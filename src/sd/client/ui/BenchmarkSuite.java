@@ -1,12 +1,18 @@
 package sd.client.ui;
 
 import sd.client.SalesClient;
+import sd.client.SalesClientPool;
+import sd.common.SaleEvent;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BenchmarkSuite {
+    private static final long WAITER_TEST_TIMEOUT_MS = 30_000;
+    private static final int BATCH_SIZE = 100;
 
     private static final class StartSignal {
         private boolean started;
@@ -42,10 +48,20 @@ public class BenchmarkSuite {
                 wait();
             }
         }
+
+        synchronized boolean awaitDone(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (remaining > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                wait(left);
+            }
+            return true;
+        }
     }
 
     private static void usage() {
-        System.out.println("Usage: java sd.client.ui.BenchmarkSuite <host> <port> <user> <pass> <clients> <threads> <opsPerThread>");
+        System.out.println("Usage: java sd.client.ui.BenchmarkSuite <host> <port> <user> <pass> <clients> <threads> <opsPerThread> [waiters]");
     }
 
     private static void ensureUser(SalesClient client, String user, String pass) throws IOException {
@@ -108,6 +124,80 @@ public class BenchmarkSuite {
         return t1 - t0;
     }
 
+    private static long runBatchedSingleConnection(final SalesClient client, int threads, final int opsPerThread) throws InterruptedException {
+        final StartSignal start = new StartSignal();
+        final DoneSignal done = new DoneSignal(threads);
+        final List<Throwable> errors = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final int tid = t;
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.awaitStart();
+                        List<SaleEvent> batch = new ArrayList<>(BATCH_SIZE);
+                        for (int i = 0; i < opsPerThread; i++) {
+                            String product = "p" + ((tid * 997 + i) % 20);
+                            int qty = 1 + ((i + tid) % 5);
+                            double price = 1.0 + ((i + tid) % 10);
+                            batch.add(new SaleEvent(product, qty, price, 0));
+                            if (batch.size() == BATCH_SIZE || i == opsPerThread - 1) {
+                                client.addSales(batch);
+                                batch.clear();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.done();
+                    }
+                }
+            }, "bench-batched-" + t);
+            th.setDaemon(true);
+            th.start();
+        }
+
+        long t0 = System.nanoTime();
+        start.start();
+        done.awaitDone();
+        long t1 = System.nanoTime();
+
+        if (!errors.isEmpty()) {
+            Throwable e = errors.get(0);
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            throw new RuntimeException(e);
+        }
+
+        return t1 - t0;
+    }
+
+    private static long runAsyncSingleConnection(SalesClient client, long ops) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            String product = "p" + (i % 20);
+            futures.add(client.addSaleAsync(product, 1 + (i % 5), 1.0 + (i % 10)));
+            if ((i % 50) == 0) futures.add(client.aggregateVolumeAsync(product, 7));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        return System.nanoTime() - t0;
+    }
+
+    private static long runAsyncPool(SalesClientPool pool, long ops) {
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            String product = "c" + ((i * 31) % 20);
+            futures.add(pool.addSaleAsync(product, 1 + (i % 3), 2.0 + (i % 7)));
+            if ((i % 40) == 0) futures.add(pool.aggregateQuantityAsync(product, 7));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        return System.nanoTime() - t0;
+    }
+
     private static long runMultiClient(final int clients, final String host, final int port, final String user, final String pass, final int opsPerClient) throws InterruptedException {
         final StartSignal start = new StartSignal();
         final DoneSignal done = new DoneSignal(clients);
@@ -160,8 +250,101 @@ public class BenchmarkSuite {
         return t1 - t0;
     }
 
+    private static void runWithParkedWaiters(final String host, final int port, final String user, final String pass, final int waiters, int threads, final int opsPerThread) throws IOException, InterruptedException {
+        final SalesClient waiterClient = new SalesClient(host, port);
+        waiterClient.connect();
+        ensureUser(waiterClient, user, pass);
+
+        final DoneSignal released = new DoneSignal(waiters);
+        final List<Throwable> errors = new ArrayList<>();
+        for (int w = 0; w < waiters; w++) {
+            final int wid = w;
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (wid % 2 == 0) {
+                            waiterClient.waitSimultaneous("bench-waiter-a-" + wid, "bench-waiter-b-" + wid);
+                        } else {
+                            waiterClient.waitConsecutive(Integer.MAX_VALUE - wid);
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        released.done();
+                    }
+                }
+            }, "bench-waiter-" + w);
+            th.setDaemon(true);
+            th.start();
+        }
+        Thread.sleep(500);
+
+        final SalesClient client = new SalesClient(host, port);
+        client.connect();
+        ensureUser(client, user, pass);
+
+        final StartSignal start = new StartSignal();
+        final DoneSignal done = new DoneSignal(threads);
+        final AtomicLong completed = new AtomicLong();
+
+        for (int t = 0; t < threads; t++) {
+            final int tid = t;
+            Thread th = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.awaitStart();
+                        for (int i = 0; i < opsPerThread; i++) {
+                            client.addSale("w" + ((tid * 997 + i) % 20), 1, 1.0);
+                            completed.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    } finally {
+                        done.done();
+                    }
+                }
+            }, "bench-ingest-" + t);
+            th.setDaemon(true);
+            th.start();
+        }
+
+        long t0 = System.nanoTime();
+        start.start();
+        boolean finished = done.awaitDone(WAITER_TEST_TIMEOUT_MS);
+        long t1 = System.nanoTime();
+
+        long ops = completed.get();
+        System.out.println("Test 3: " + waiters + " parked waiters, " + threads + " ingest threads, ops=" + ops + ", timeMs=" + ((t1 - t0) / 1_000_000.0) + ", ops/s=" + opsPerSecond(ops, t1 - t0) + (finished ? "" : " (timed out: ingest starved by waiters)"));
+
+        Throwable failure = null;
+        try {
+            if (finished) {
+                client.nextDay();
+                boolean allReleased = released.awaitDone(WAITER_TEST_TIMEOUT_MS);
+                System.out.println("Test 3: waiters released by nextDay: " + (allReleased ? "all " + waiters : "NOT all (timed out)"));
+            }
+            synchronized (errors) {
+                if (!errors.isEmpty()) failure = errors.get(0);
+            }
+        } finally {
+            client.close();
+            waiterClient.close();
+        }
+
+        if (failure != null) {
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            throw new RuntimeException(failure);
+        }
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args == null || args.length != 7) {
+        if (args == null || (args.length != 7 && args.length != 8)) {
             usage();
             return;
         }
@@ -173,11 +356,13 @@ public class BenchmarkSuite {
         int clients = Integer.parseInt(args[4]);
         int threads = Integer.parseInt(args[5]);
         int opsPerThread = Integer.parseInt(args[6]);
+        int waiters = (args.length > 7) ? Integer.parseInt(args[7]) : 0;
 
         if (port <= 0 || port > 65535) throw new IllegalArgumentException("Invalid port");
         if (clients <= 0) throw new IllegalArgumentException("clients must be > 0");
         if (threads <= 0) throw new IllegalArgumentException("threads must be > 0");
         if (opsPerThread <= 0) throw new IllegalArgumentException("opsPerThread must be > 0");
+        if (waiters < 0) throw new IllegalArgumentException("waiters must be >= 0");
 
         SalesClient shared = new SalesClient(host, port);
         shared.connect();
@@ -187,11 +372,29 @@ public class BenchmarkSuite {
         long nanos1 = runMultiThreadSingleConnection(shared, threads, opsPerThread);
         System.out.println("Test 1: single connection, " + threads + " threads, ops=" + ops1 + ", timeMs=" + (nanos1 / 1_000_000.0) + ", ops/s=" + opsPerSecond(ops1, nanos1));
 
+        long nanos1b = runBatchedSingleConnection(shared, threads, opsPerThread);
+        System.out.println("Test 1b: single connection, " + threads + " threads, batches of " + BATCH_SIZE + ", ops=" + ops1 + ", timeMs=" + (nanos1b / 1_000_000.0) + ", ops/s=" + opsPerSecond(ops1, nanos1b));
+
+        long nanos1c = runAsyncSingleConnection(shared, ops1);
+        System.out.println("Test 1c: single connection, 1 thread, async pipelined, ops=" + ops1 + ", timeMs=" + (nanos1c / 1_000_000.0) + ", ops/s=" + opsPerSecond(ops1, nanos1c));
+
         shared.close();
 
         int opsPerClient = threads * opsPerThread;
         long ops2 = (long) clients * (long) opsPerClient;
         long nanos2 = runMultiClient(clients, host, port, user, pass, opsPerClient);
         System.out.println("Test 2: " + clients + " clients, ops=" + ops2 + ", timeMs=" + (nanos2 / 1_000_000.0) + ", ops/s=" + opsPerSecond(ops2, nanos2));
+
+        SalesClientPool pool = new SalesClientPool(host, port, clients);
+        pool.connect();
+        pool.register(user, pass);
+        if (!pool.login(user, pass)) throw new IOException("Login failed");
+        long nanos2b = runAsyncPool(pool, ops2);
+        System.out.println("Test 2b: pool of " + clients + " connections, 1 thread, async, ops=" + ops2 + ", timeMs=" + (nanos2b / 1_000_000.0) + ", ops/s=" + opsPerSecond(ops2, nanos2b));
+        pool.close();
+
+        if (waiters > 0) {
+            runWithParkedWaiters(host, port, user, pass, waiters, threads, opsPerThread);
+        }
     }
 }
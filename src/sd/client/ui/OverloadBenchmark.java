@@ -0,0 +1,169 @@
+package sd.client.ui;
+
+import sd.client.SalesClient;
+import sd.common.ProtocolConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OverloadBenchmark {
+    private static volatile boolean running;
+
+    private static void usage() {
+        System.out.println("Usage: java sd.client.ui.OverloadBenchmark <host> <port> <user> <pass> <normalClients> <seconds>");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length != 6) {
+            usage();
+            return;
+        }
+
+        final String host = args[0];
+        final int port = Integer.parseInt(args[1]);
+        final String user = args[2];
+        final String pass = args[3];
+        int normalClients = Integer.parseInt(args[4]);
+        int seconds = Integer.parseInt(args[5]);
+
+        final AtomicLong floodSent = new AtomicLong();
+        final AtomicLong floodOk = new AtomicLong();
+        final AtomicLong floodErrors = new AtomicLong();
+
+        final AtomicLong normalOps = new AtomicLong();
+        final AtomicLong normalErrors = new AtomicLong();
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+
+        running = true;
+
+        final Socket flood = new Socket(host, port);
+        flood.setTcpNoDelay(true);
+        final DataOutputStream floodOut = new DataOutputStream(new BufferedOutputStream(flood.getOutputStream(), 64 * 1024));
+        final DataInputStream floodIn = new DataInputStream(new BufferedInputStream(flood.getInputStream()));
+
+        writeCredentials(floodOut, 1, ProtocolConstants.MSG_REGISTER, user, pass);
+        writeCredentials(floodOut, 2, ProtocolConstants.MSG_LOGIN, user, pass);
+        floodOut.flush();
+        for (int i = 0; i < 2; i++) readResponse(floodIn);
+
+        Thread floodReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        if (readResponse(floodIn)) floodOk.incrementAndGet();
+                        else floodErrors.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        }, "flood-reader");
+        floodReader.setDaemon(true);
+        floodReader.start();
+
+        Thread floodWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int reqId = 3;
+                try {
+                    while (running) {
+                        floodOut.writeInt(reqId++);
+                        floodOut.writeByte(ProtocolConstants.MSG_ADD_SALE);
+                        floodOut.writeUTF("flood" + (reqId % 10));
+                        floodOut.writeInt(1);
+                        floodOut.writeDouble(1.0);
+                        if ((reqId & 63) == 0) floodOut.flush();
+                        floodSent.incrementAndGet();
+                    }
+                    floodOut.flush();
+                } catch (IOException e) {
+                }
+            }
+        }, "flood-writer");
+        floodWriter.setDaemon(true);
+        floodWriter.start();
+
+        Thread.sleep(500);
+
+        List<Thread> normals = new ArrayList<>();
+        for (int c = 0; c < normalClients; c++) {
+            final int cid = c;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SalesClient client = new SalesClient(host, port);
+                    try {
+                        client.connect();
+                        client.register(user, pass);
+                        if (!client.login(user, pass)) throw new IOException("Login failed");
+                        int i = 0;
+                        while (running) {
+                            long t0 = System.nanoTime();
+                            boolean ok = client.addSale("normal" + cid, 1, 2.0);
+                            if ((i++ & 3) == 0) client.aggregateQuantity("normal" + cid, 1);
+                            latencies.add(System.nanoTime() - t0);
+                            if (ok) normalOps.incrementAndGet();
+                            else normalErrors.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        normalErrors.incrementAndGet();
+                    } finally {
+                        try {
+                            client.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }, "normal-" + c);
+            t.setDaemon(true);
+            normals.add(t);
+            t.start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread t : normals) t.join(10_000);
+        flood.close();
+
+        List<Long> sorted;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+        }
+        Collections.sort(sorted);
+
+        System.out.println("Aggressive client: sent=" + floodSent.get() + ", ok=" + floodOk.get() + ", errors=" + floodErrors.get());
+        System.out.println("Normal clients (" + normalClients + "): ok=" + normalOps.get() + ", errors=" + normalErrors.get()
+                + ", ops/s=" + (normalOps.get() / (double) seconds)
+                + ", p50Ms=" + percentileMs(sorted, 0.50) + ", p99Ms=" + percentileMs(sorted, 0.99)
+                + ", maxMs=" + percentileMs(sorted, 1.0));
+    }
+
+    private static void writeCredentials(DataOutputStream out, int reqId, byte opcode, String user, String pass) throws IOException {
+        out.writeInt(reqId);
+        out.writeByte(opcode);
+        out.writeUTF(user);
+        out.writeUTF(pass);
+    }
+
+    private static boolean readResponse(DataInputStream in) throws IOException {
+        in.readInt();
+        byte status = in.readByte();
+        if (status == ProtocolConstants.STATUS_OK) return true;
+        in.readUTF();
+        return false;
+    }
+
+    private static double percentileMs(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0.0;
+        int idx = (int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1);
+        return sorted.get(Math.max(0, idx)) / 1_000_000.0;
+    }
+}
@@ -0,0 +1,102 @@
+package sd.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class BackgroundExecutor implements Executor {
+    private final int capacity;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Thread[] threads;
+
+    BackgroundExecutor(int nThreads, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.threads = new Thread[Math.max(1, nThreads)];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runTasks();
+                }
+            }, "background-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        lock.lock();
+        try {
+            while (tasks.size() >= capacity) {
+                if (isBackgroundThread()) break;
+                notFull.awaitUninterruptibly();
+            }
+            if (tasks.size() < capacity) {
+                tasks.addLast(r);
+                notEmpty.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        runTask(r);
+    }
+
+    boolean tryExecute(Runnable r) {
+        lock.lock();
+        try {
+            if (tasks.size() >= capacity) return false;
+            tasks.addLast(r);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int queueDepth() {
+        lock.lock();
+        try {
+            return tasks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isBackgroundThread() {
+        Thread current = Thread.currentThread();
+        for (Thread t : threads) {
+            if (t == current) return true;
+        }
+        return false;
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable r;
+            lock.lock();
+            try {
+                while (tasks.isEmpty()) notEmpty.awaitUninterruptibly();
+                r = tasks.removeFirst();
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            runTask(r);
+        }
+    }
+
+    private static void runTask(Runnable r) {
+        try {
+            r.run();
+        } catch (Throwable t) {
+            System.err.println("BackgroundExecutor: " + t.getMessage());
+            t.printStackTrace(System.err);
+        }
+    }
+}
@@ -3,33 +3,85 @@ package sd.server;
 import sd.common.ProtocolConstants;
 import sd.common.SaleEvent;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 public class ClientHandler implements Runnable {
-    private static final int TASK_QUEUE_CAPACITY = 4096;
-    private static final SimpleThreadPool workerPool = new SimpleThreadPool(8, TASK_QUEUE_CAPACITY);
+    private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+    private static final int INITIAL_BATCH_CAPACITY = 1024;
+    private static final long MAX_PENDING_RESPONSE_BYTES = 64L * 1024 * 1024;
+    private static final int STREAM_CHUNK_EVENTS = 4096;
+    private static final int STREAM_WINDOW_BYTES = 256 * 1024;
+    private static final long QUEUE_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final class StreamAborted extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StreamAborted() {
+            super(null, null, false, false);
+        }
+    }
 
     private final Socket socket;
+    private final Closeable connection;
+    private final ThreadFactory writerThreads;
     private final UserManager userManager;
     private final SalesStore salesStore;
+    private final RequestExecutor workerPool;
+    private final RequestExecutor streamPool;
+    private final TaskLane lane = new TaskLane(false);
+    private final TaskLane streamLane = new TaskLane(false);
+    private final TaskLane ingestLane;
+    private final int maxInFlight;
 
     private volatile boolean loggedIn;
     private volatile boolean running;
 
-    private DataInputStream in;
-    private DataOutputStream out;
-
-    private final Object outLock = new Object();
+    private OutputStream out;
+    private final ConcurrentLinkedQueue<ResponseFrame> pendingResponses = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pendingResponseBytes = new AtomicLong();
+
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final Condition responsesReady = outLock.newCondition();
+    private final Condition responsesDrained = outLock.newCondition();
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private volatile Runnable flushResponses;
+
+    private final ReentrantLock flowLock = new ReentrantLock();
+    private final Condition slotFree = flowLock.newCondition();
+    private int inFlight;
+    private volatile Runnable resumeReads;
+    private volatile Runnable retryLater;
+    private volatile DeferredTask deferred;
+    private volatile boolean authPending;
+    private volatile OutputWindow outputWindow;
+    private final Set<CompletableFuture<?>> pendingWaits = ConcurrentHashMap.newKeySet();
 
     private void logIOException(String where, IOException e) {
         System.err.println(where + ": " + e.getMessage());
@@ -44,77 +96,208 @@ public class ClientHandler implements Runnable {
         return !(Double.isNaN(price) || Double.isInfinite(price) || price < 0.0);
     }
 
-    private static final class SimpleThreadPool {
-        private final int capacity;
-        private final ArrayDeque<Runnable> tasks;
-        private final Thread[] workers;
+    ClientHandler(Socket socket, ThreadFactory writerThreads, UserManager userManager, SalesStore salesStore, RequestExecutor workerPool, RequestExecutor streamPool, int maxInFlight, boolean orderedIngest) {
+        this.socket = socket;
+        this.connection = socket;
+        this.writerThreads = writerThreads;
+        this.userManager = userManager;
+        this.salesStore = salesStore;
+        this.workerPool = workerPool;
+        this.streamPool = streamPool;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.ingestLane = orderedIngest ? new TaskLane(true) : lane;
+        this.loggedIn = false;
+        this.running = true;
+    }
 
-        SimpleThreadPool(int nThreads, int capacity) {
-            this.capacity = Math.max(1, capacity);
-            this.tasks = new ArrayDeque<>();
-            this.workers = new Thread[nThreads];
-            for (int i = 0; i < nThreads; i++) {
-                workers[i] = new Thread(new Worker(), "worker-" + i);
-                workers[i].setDaemon(true);
-                workers[i].start();
-            }
+    ClientHandler(Closeable connection, OutputStream rawOut, UserManager userManager, SalesStore salesStore, RequestExecutor workerPool, RequestExecutor streamPool, int maxInFlight, boolean orderedIngest) {
+        this.socket = null;
+        this.connection = connection;
+        this.writerThreads = null;
+        this.out = rawOut;
+        this.userManager = userManager;
+        this.salesStore = salesStore;
+        this.workerPool = workerPool;
+        this.streamPool = streamPool;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.ingestLane = orderedIngest ? new TaskLane(true) : lane;
+        this.loggedIn = false;
+        this.running = true;
+    }
+
+    boolean isRunning() {
+        return running;
+    }
+
+    void setResumeReads(Runnable resumeReads) {
+        this.resumeReads = resumeReads;
+    }
+
+    void setRetryLater(Runnable retryLater) {
+        this.retryLater = retryLater;
+    }
+
+    void setFlushResponses(Runnable flushResponses) {
+        this.flushResponses = flushResponses;
+    }
+
+    void setOutputWindow(OutputWindow outputWindow) {
+        this.outputWindow = outputWindow;
+    }
+
+    boolean hasCapacity() {
+        if (deferred != null || authPending) return false;
+        flowLock.lock();
+        try {
+            return inFlight < maxInFlight;
+        } finally {
+            flowLock.unlock();
         }
+    }
 
-        boolean execute(Runnable r) {
-            synchronized (tasks) {
-                if (tasks.size() >= capacity) return false;
-                tasks.addLast(r);
-                tasks.notifyAll();
-                return true;
+    private boolean acquireSlot() {
+        flowLock.lock();
+        try {
+            while (inFlight >= maxInFlight) {
+                if (!running) return false;
+                slotFree.awaitUninterruptibly();
             }
+            inFlight++;
+            return true;
+        } finally {
+            flowLock.unlock();
         }
+    }
 
-        private final class Worker implements Runnable {
+    private void releaseSlot() {
+        boolean resume;
+        flowLock.lock();
+        try {
+            resume = inFlight == maxInFlight;
+            inFlight--;
+            slotFree.signal();
+        } finally {
+            flowLock.unlock();
+        }
+        Runnable hook = resumeReads;
+        if (resume && hook != null) hook.run();
+    }
+
+    private void submit(final Runnable r) {
+        submit(workerPool, lane, r);
+    }
+
+    private void submit(RequestExecutor executor, TaskLane target, final Runnable r) {
+        if (!acquireSlot()) return;
+        enqueueTask(executor, target, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                } finally {
+                    releaseSlot();
+                }
+            }
+        });
+    }
+
+    private void submitWrite(final Supplier<CompletableFuture<?>> write) {
+        if (!acquireSlot()) return;
+        enqueueTask(workerPool, ingestLane, new Runnable() {
             @Override
             public void run() {
-                while (true) {
-                    Runnable r;
-                    synchronized (tasks) {
-                        while (tasks.isEmpty()) {
-                            try {
-                                tasks.wait();
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                return;
+                CompletableFuture<?> written = null;
+                try {
+                    written = write.get();
+                } finally {
+                    if (written == null) {
+                        releaseSlot();
+                    } else {
+                        written.whenComplete(new BiConsumer<Object, Throwable>() {
+                            @Override
+                            public void accept(Object ignored, Throwable failure) {
+                                releaseSlot();
                             }
-                        }
-                        r = tasks.removeFirst();
-                    }
-                    try {
-                        r.run();
-                    } catch (Throwable t) {
-                        System.err.println("ClientHandler.worker: " + t.getMessage());
-                        t.printStackTrace(System.err);
+                        });
                     }
                 }
             }
+        });
+    }
+
+    private void submitAuth(final Runnable auth) {
+        if (resumeReads == null) {
+            auth.run();
+            return;
         }
+        authPending = true;
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    auth.run();
+                } finally {
+                    authPending = false;
+                    Runnable hook = resumeReads;
+                    if (hook != null) hook.run();
+                }
+            }
+        });
     }
 
-    public ClientHandler(Socket socket, UserManager userManager, SalesStore salesStore) {
-        this.socket = socket;
-        this.userManager = userManager;
-        this.salesStore = salesStore;
-        this.loggedIn = false;
-        this.running = true;
+    private void enqueueTask(RequestExecutor executor, TaskLane target, Runnable task) {
+        if (executor.execute(target, task)) return;
+
+        Runnable hook = retryLater;
+        if (hook != null) {
+            deferred = new DeferredTask(executor, target, task);
+            hook.run();
+            return;
+        }
+        while (!executor.execute(target, task)) {
+            if (!running) {
+                releaseSlot();
+                return;
+            }
+            LockSupport.parkNanos(QUEUE_RETRY_NANOS);
+        }
+    }
+
+    boolean retryDeferred() {
+        DeferredTask d = deferred;
+        if (d == null) return true;
+        if (!running) {
+            deferred = null;
+            return true;
+        }
+        if (!d.executor.execute(d.lane, d.task)) return false;
+        deferred = null;
+        return true;
     }
 
-    private void submitOrBusy(int requestId, Runnable r) {
-        if (!workerPool.execute(r)) {
-            sendError(requestId, "Server busy");
+    private static final class DeferredTask {
+        final RequestExecutor executor;
+        final TaskLane lane;
+        final Runnable task;
+
+        DeferredTask(RequestExecutor executor, TaskLane lane, Runnable task) {
+            this.executor = executor;
+            this.lane = lane;
+            this.task = task;
         }
     }
 
     @Override
     public void run() {
         try {
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            writerThreads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }).start();
 
             while (running) {
                 int requestId;
@@ -126,368 +309,656 @@ public class ClientHandler implements Runnable {
                     break;
                 }
 
-                switch (opcode) {
-                    case ProtocolConstants.MSG_LOGIN: {
-                        final int req = requestId;
-                        final String user = in.readUTF();
-                        final String pass = in.readUTF();
+                dispatch(requestId, opcode, in);
+            }
+        } catch (IOException e) {
+            logIOException("ClientHandler.run", e);
+        } finally {
+            closeNow();
+        }
+    }
 
-                        if (!isValidNonEmpty(user) || !isValidNonEmpty(pass)) {
-                            sendError(req, "Invalid credentials");
-                            break;
-                        }
+    void dispatch(int requestId, byte opcode, DataInputStream in) throws IOException {
+        switch (opcode) {
+            case ProtocolConstants.MSG_LOGIN: {
+                final int req = requestId;
+                final String user = in.readUTF();
+                final String pass = in.readUTF();
 
-                        boolean ok = userManager.authenticate(user, pass);
-                        if (ok) {
+                if (!isValidNonEmpty(user) || !isValidNonEmpty(pass)) {
+                    sendError(req, "Invalid credentials");
+                    break;
+                }
+
+                submitAuth(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (userManager.authenticate(user, pass)) {
                             loggedIn = true;
                             sendOk(req);
                         } else {
                             sendError(req, "Invalid credentials");
                         }
-                        break;
                     }
+                });
+                break;
+            }
 
-                    case ProtocolConstants.MSG_REGISTER: {
-                        final int req = requestId;
-                        final String user = in.readUTF();
-                        final String pass = in.readUTF();
+            case ProtocolConstants.MSG_REGISTER: {
+                final int req = requestId;
+                final String user = in.readUTF();
+                final String pass = in.readUTF();
 
-                        if (!isValidNonEmpty(user) || !isValidNonEmpty(pass)) {
-                            sendError(req, "Invalid registration data");
-                            break;
-                        }
+                if (!isValidNonEmpty(user) || !isValidNonEmpty(pass)) {
+                    sendError(req, "Invalid registration data");
+                    break;
+                }
 
-                        boolean ok = userManager.register(user, pass);
-                        if (ok) {
+                submitAuth(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (userManager.register(user, pass)) {
                             sendOk(req);
                         } else {
                             sendError(req, "User already exists");
                         }
-                        break;
                     }
+                });
+                break;
+            }
 
-                    case ProtocolConstants.MSG_LOGOUT: {
-                        final int req = requestId;
+            case ProtocolConstants.MSG_LOGOUT: {
+                final int req = requestId;
 
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
-                        }
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                        loggedIn = false;
-                        sendOk(req);
-                        break;
-                    }
+                loggedIn = false;
+                sendOk(req);
+                break;
+            }
 
-                    case ProtocolConstants.MSG_ADD_SALE: {
-                        final int req = requestId;
-                        final String productIdRaw = in.readUTF();
-                        final int quantity = in.readInt();
-                        final double price = in.readDouble();
+            case ProtocolConstants.MSG_ADD_SALE: {
+                final int req = requestId;
+                final String productIdRaw = in.readUTF();
+                final int quantity = in.readInt();
+                final double price = in.readDouble();
 
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
-                        }
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                        final String productId = (productIdRaw == null) ? null : productIdRaw.trim();
-                        if (!isValidNonEmpty(productId) || quantity <= 0 || !isValidPrice(price)) {
-                            sendError(req, "Invalid sale data");
-                            break;
-                        }
+                final String productId = (productIdRaw == null) ? null : productIdRaw.trim();
+                if (!isValidNonEmpty(productId) || quantity <= 0 || !isValidPrice(price)) {
+                    sendError(req, "Invalid sale data");
+                    break;
+                }
 
-                        submitOrBusy(req, new Runnable() {
+                submitWrite(new Supplier<CompletableFuture<?>>() {
+                    @Override
+                    public CompletableFuture<?> get() {
+                        CompletableFuture<Void> written;
+                        try {
+                            written = salesStore.addSaleAsync(productId, quantity, price);
+                        } catch (RuntimeException e) {
+                            sendSaleError(req, e);
+                            return null;
+                        }
+                        written.whenComplete(new BiConsumer<Void, Throwable>() {
                             @Override
-                            public void run() {
-                                try {
-                                    salesStore.addSale(productId, quantity, price);
-                                    sendOk(req);
-                                } catch (IllegalArgumentException e) {
-                                    sendError(req, "Invalid sale data");
-                                } catch (IllegalStateException e) {
-                                    sendError(req, "I/O error");
-                                } catch (RuntimeException e) {
-                                    sendError(req, "Server error");
-                                }
+                            public void accept(Void ignored, Throwable failure) {
+                                if (failure == null) sendOk(req);
+                                else sendSaleError(req, failure);
                             }
                         });
-                        break;
+                        return written;
+                    }
+                });
+                break;
+            }
+
+            case ProtocolConstants.MSG_ADD_SALES: {
+                final int req = requestId;
+                int nProducts = in.readInt();
+                List<String> dictionary = new ArrayList<>();
+                for (int i = 0; i < nProducts; i++) dictionary.add(in.readUTF());
+                int nSales = in.readInt();
+                String[] ids = new String[Math.min(Math.max(0, nSales), INITIAL_BATCH_CAPACITY)];
+                int[] qs = new int[ids.length];
+                double[] ps = new double[ids.length];
+                for (int i = 0; i < nSales; i++) {
+                    if (i == ids.length) {
+                        int grown = (int) Math.min(nSales, 2L * ids.length);
+                        ids = Arrays.copyOf(ids, grown);
+                        qs = Arrays.copyOf(qs, grown);
+                        ps = Arrays.copyOf(ps, grown);
                     }
+                    int productIndex = in.readInt();
+                    ids[i] = (productIndex >= 0 && productIndex < dictionary.size()) ? dictionary.get(productIndex) : null;
+                    qs[i] = in.readInt();
+                    ps[i] = in.readDouble();
+                }
+                final String[] productIds = ids;
+                final int[] quantities = qs;
+                final double[] prices = ps;
 
-                    case ProtocolConstants.MSG_NEW_DAY: {
-                        final int req = requestId;
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
-                        }
+                if (nProducts < 0 || nSales < 0) {
+                    sendError(req, "Invalid sale data");
+                    break;
+                }
 
-                        submitOrBusy(req, new Runnable() {
+                submitWrite(new Supplier<CompletableFuture<?>>() {
+                    @Override
+                    public CompletableFuture<?> get() {
+                        CompletableFuture<boolean[]> written;
+                        try {
+                            written = salesStore.addSalesAsync(productIds, quantities, prices);
+                        } catch (RuntimeException e) {
+                            sendSaleError(req, e);
+                            return null;
+                        }
+                        written.whenComplete(new BiConsumer<boolean[], Throwable>() {
                             @Override
-                            public void run() {
-                                salesStore.nextDay();
-                                sendOk(req);
+                            public void accept(boolean[] accepted, Throwable failure) {
+                                if (failure == null) sendOkBitmap(req, accepted);
+                                else sendSaleError(req, failure);
                             }
                         });
-                        break;
+                        return written;
                     }
+                });
+                break;
+            }
 
-                    case ProtocolConstants.MSG_AGGREGATE: {
-                        final int req = requestId;
-                        final byte aggType = in.readByte();
-                        final String productIdRaw = in.readUTF();
-                        final int lastDays = in.readInt();
-
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
-                        }
+            case ProtocolConstants.MSG_NEW_DAY: {
+                final int req = requestId;
 
-                        final String productId = (productIdRaw == null) ? null : productIdRaw.trim();
-                        if (!isValidNonEmpty(productId) || lastDays <= 0) {
-                            sendError(req, "Invalid aggregation parameters");
-                            break;
-                        }
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                        submitOrBusy(req, new Runnable() {
-                            @Override
-                            public void run() {
-                                double result;
-                                if (aggType == ProtocolConstants.AGG_QUANTITY) {
-                                    result = salesStore.aggregateQuantity(productId, lastDays);
-                                } else if (aggType == ProtocolConstants.AGG_VOLUME) {
-                                    result = salesStore.aggregateVolume(productId, lastDays);
-                                } else if (aggType == ProtocolConstants.AGG_AVG_PRICE) {
-                                    result = salesStore.aggregateAveragePrice(productId, lastDays);
-                                } else if (aggType == ProtocolConstants.AGG_MAX_PRICE) {
-                                    result = salesStore.aggregateMaxPrice(productId, lastDays);
-                                } else {
-                                    sendError(req, "Unknown aggregation type");
-                                    return;
-                                }
-                                sendOkDouble(req, result);
-                            }
-                        });
-                        break;
+                submit(workerPool, ingestLane, new Runnable() {
+                    @Override
+                    public void run() {
+                        salesStore.nextDay();
+                        sendOk(req);
                     }
+                });
+                break;
+            }
+
+            case ProtocolConstants.MSG_AGGREGATE: {
+                final int req = requestId;
+                final byte aggType = in.readByte();
+                final String productIdRaw = in.readUTF();
+                final int lastDays = in.readInt();
+
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                    case ProtocolConstants.MSG_FILTER_EVENTS: {
-                        final int req = requestId;
-                        final int day = in.readInt();
-                        int n = in.readInt();
-                        final List<String> products = new ArrayList<>();
-                        for (int i = 0; i < n; i++) products.add(in.readUTF());
+                final String productId = (productIdRaw == null) ? null : productIdRaw.trim();
+                if (!isValidNonEmpty(productId) || lastDays <= 0) {
+                    sendError(req, "Invalid aggregation parameters");
+                    break;
+                }
 
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        double result;
+                        if (aggType == ProtocolConstants.AGG_QUANTITY) {
+                            result = salesStore.aggregateQuantity(productId, lastDays);
+                        } else if (aggType == ProtocolConstants.AGG_VOLUME) {
+                            result = salesStore.aggregateVolume(productId, lastDays);
+                        } else if (aggType == ProtocolConstants.AGG_AVG_PRICE) {
+                            result = salesStore.aggregateAveragePrice(productId, lastDays);
+                        } else if (aggType == ProtocolConstants.AGG_MAX_PRICE) {
+                            result = salesStore.aggregateMaxPrice(productId, lastDays);
+                        } else {
+                            sendError(req, "Unknown aggregation type");
+                            return;
                         }
+                        sendOkDouble(req, result);
+                    }
+                });
+                break;
+            }
 
-                        submitOrBusy(req, new Runnable() {
-                            @Override
-                            public void run() {
-                                List<SaleEvent> events = salesStore.filterEvents(day, products);
-
-                                LinkedHashSet<String> productsTableSet = new LinkedHashSet<>();
-                                for (SaleEvent e : events) productsTableSet.add(e.getProductId());
-                                final List<String> productsTable = new ArrayList<>(productsTableSet);
-
-                                final Map<String, Integer> index = new HashMap<>();
-                                for (int i = 0; i < productsTable.size(); i++) index.put(productsTable.get(i), i);
-
-                                synchronized (outLock) {
-                                    if (!running) return;
-                                    try {
-                                        out.writeInt(req);
-                                        out.writeByte(ProtocolConstants.STATUS_OK);
-
-                                        out.writeInt(productsTable.size());
-                                        for (String p : productsTable) out.writeUTF(p);
-
-                                        out.writeInt(events.size());
-                                        for (SaleEvent e : events) {
-                                            out.writeInt(index.get(e.getProductId()));
-                                            out.writeInt(e.getQuantity());
-                                            out.writeDouble(e.getPrice());
-                                        }
-
-                                        out.flush();
-                                    } catch (IOException e) {
-                                        logIOException("ClientHandler.sendFilterEvents", e);
-                                        closeNow();
-                                    } catch (RuntimeException e) {
-                                        closeNow();
-                                    }
-                                }
+            case ProtocolConstants.MSG_AGGREGATE_MULTI: {
+                final int req = requestId;
+                int mask = in.readByte() & 0xFF;
+                int n = in.readInt();
+                final List<String> products = new ArrayList<>();
+                for (int i = 0; i < n; i++) products.add(in.readUTF());
+                final int lastDays = in.readInt();
+
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
+
+                boolean valid = lastDays > 0;
+                for (int i = 0; i < products.size() && valid; i++) {
+                    String p = products.get(i).trim();
+                    valid = isValidNonEmpty(p);
+                    products.set(i, p);
+                }
+                if (!valid) {
+                    sendError(req, "Invalid aggregation parameters");
+                    break;
+                }
+                if (mask == 0 || (mask >> ProtocolConstants.AGG_MAX_PRICE) != 0) {
+                    sendError(req, "Unknown aggregation type");
+                    break;
+                }
+
+                final byte[] aggTypes = new byte[Integer.bitCount(mask)];
+                int k = 0;
+                for (byte t = ProtocolConstants.AGG_QUANTITY; t <= ProtocolConstants.AGG_MAX_PRICE; t++) {
+                    if ((mask & (1 << (t - 1))) != 0) aggTypes[k++] = t;
+                }
+
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        double[][] matrix = salesStore.aggregateMany(products, aggTypes, lastDays);
+                        ResponseFrame frame = new ResponseFrame(req, ProtocolConstants.STATUS_OK);
+                        try {
+                            frame.writeInt(matrix.length);
+                            frame.writeInt(aggTypes.length);
+                            for (double[] row : matrix) {
+                                for (double v : row) frame.writeDouble(v);
                             }
-                        });
-                        break;
+                        } catch (RuntimeException e) {
+                            closeNow();
+                            return;
+                        }
+                        enqueueResponse(frame);
                     }
+                });
+                break;
+            }
 
-                    case ProtocolConstants.MSG_WAIT_SIMULTANEOUS: {
-                        final int req = requestId;
-                        final String p1Raw = in.readUTF();
-                        final String p2Raw = in.readUTF();
+            case ProtocolConstants.MSG_FILTER_EVENTS: {
+                final int req = requestId;
+                final int day = in.readInt();
+                int n = in.readInt();
+                final List<String> products = new ArrayList<>();
+                for (int i = 0; i < n; i++) products.add(in.readUTF());
 
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
-                        }
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                        final String p1 = (p1Raw == null) ? null : p1Raw.trim();
-                        final String p2 = (p2Raw == null) ? null : p2Raw.trim();
-                        if (!isValidNonEmpty(p1) || !isValidNonEmpty(p2)) {
-                            sendError(req, "Invalid productId");
-                            break;
-                        }
+                submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<SaleEvent> events = salesStore.filterEvents(day, products);
 
-                        submitOrBusy(req, new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    boolean result = salesStore.waitForSimultaneous(p1, p2);
-                                    sendOkBoolean(req, result);
-                                } catch (InterruptedException e) {
-                                    sendError(req, "Interrupted");
-                                } catch (IllegalArgumentException e) {
-                                    sendError(req, "Invalid productId");
-                                } catch (RuntimeException e) {
-                                    sendError(req, "Server error");
-                                }
+                        LinkedHashSet<String> productsTableSet = new LinkedHashSet<>();
+                        for (SaleEvent e : events) productsTableSet.add(e.getProductId());
+                        final List<String> productsTable = new ArrayList<>(productsTableSet);
+
+                        final Map<String, Integer> index = new HashMap<>();
+                        for (int i = 0; i < productsTable.size(); i++) index.put(productsTable.get(i), i);
+
+                        ResponseFrame frame = new ResponseFrame(req, ProtocolConstants.STATUS_OK);
+                        try {
+                            frame.writeInt(productsTable.size());
+                            for (String p : productsTable) frame.writeUTF(p);
+
+                            frame.writeInt(events.size());
+                            for (SaleEvent e : events) {
+                                frame.writeInt(index.get(e.getProductId()));
+                                frame.writeInt(e.getQuantity());
+                                frame.writeDouble(e.getPrice());
                             }
-                        });
-                        break;
+                        } catch (RuntimeException e) {
+                            closeNow();
+                            return;
+                        }
+                        enqueueResponse(frame);
                     }
+                });
+                break;
+            }
 
-                    case ProtocolConstants.MSG_WAIT_CONSECUTIVE: {
-                        final int req = requestId;
-                        final int count = in.readInt();
+            case ProtocolConstants.MSG_FILTER_EVENTS_STREAM: {
+                final int req = requestId;
+                final int day = in.readInt();
+                int n = in.readInt();
+                final List<String> products = new ArrayList<>();
+                for (int i = 0; i < n; i++) products.add(in.readUTF());
 
-                        if (!loggedIn) {
-                            sendError(req, "Not logged in");
-                            break;
-                        }
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
 
-                        if (count <= 0) {
-                            sendError(req, "Invalid count");
-                            break;
+                submit(streamPool, streamLane, new Runnable() {
+                    @Override
+                    public void run() {
+                        EventStream stream = new EventStream(req);
+                        try {
+                            salesStore.scanEvents(day, products, stream);
+                            stream.finish();
+                        } catch (StreamAborted e) {
                         }
+                    }
+                });
+                break;
+            }
 
-                        submitOrBusy(req, new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    String product = salesStore.waitForConsecutive(count);
-                                    sendOkConsecutive(req, product);
-                                } catch (InterruptedException e) {
-                                    sendError(req, "Interrupted");
-                                } catch (IllegalArgumentException e) {
-                                    sendError(req, "Invalid count");
-                                } catch (RuntimeException e) {
-                                    sendError(req, "Server error");
-                                }
-                            }
-                        });
-                        break;
+            case ProtocolConstants.MSG_WAIT_SIMULTANEOUS: {
+                final int req = requestId;
+                final String p1Raw = in.readUTF();
+                final String p2Raw = in.readUTF();
+
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
+
+                final String p1 = (p1Raw == null) ? null : p1Raw.trim();
+                final String p2 = (p2Raw == null) ? null : p2Raw.trim();
+                if (!isValidNonEmpty(p1) || !isValidNonEmpty(p2)) {
+                    sendError(req, "Invalid productId");
+                    break;
+                }
+
+                final CompletableFuture<Boolean> result;
+                try {
+                    result = salesStore.awaitSimultaneous(p1, p2);
+                } catch (IllegalArgumentException e) {
+                    sendError(req, "Invalid productId");
+                    break;
+                } catch (RuntimeException e) {
+                    sendError(req, "Server error");
+                    break;
+                }
+                trackWait(result);
+                result.whenComplete(new BiConsumer<Boolean, Throwable>() {
+                    @Override
+                    public void accept(Boolean value, Throwable failure) {
+                        pendingWaits.remove(result);
+                        if (failure == null) sendOkBoolean(req, value);
+                        else if (!(failure instanceof CancellationException)) sendError(req, "Server error");
                     }
+                });
+                break;
+            }
+
+            case ProtocolConstants.MSG_WAIT_CONSECUTIVE: {
+                final int req = requestId;
+                final int count = in.readInt();
+
+                if (!loggedIn) {
+                    sendError(req, "Not logged in");
+                    break;
+                }
+
+                if (count <= 0) {
+                    sendError(req, "Invalid count");
+                    break;
+                }
 
-                    default:
-                        sendError(requestId, "Unknown opcode");
-                        break;
+                final CompletableFuture<String> result;
+                try {
+                    result = salesStore.awaitConsecutive(count);
+                } catch (IllegalArgumentException e) {
+                    sendError(req, "Invalid count");
+                    break;
+                } catch (RuntimeException e) {
+                    sendError(req, "Server error");
+                    break;
                 }
+                trackWait(result);
+                result.whenComplete(new BiConsumer<String, Throwable>() {
+                    @Override
+                    public void accept(String product, Throwable failure) {
+                        pendingWaits.remove(result);
+                        if (failure == null) sendOkConsecutive(req, product);
+                        else if (!(failure instanceof CancellationException)) sendError(req, "Server error");
+                    }
+                });
+                break;
             }
-        } catch (IOException e) {
-            logIOException("ClientHandler.run", e);
-        } finally {
-            closeNow();
+
+            default:
+                sendError(requestId, "Unknown opcode");
+                break;
+        }
+    }
+
+    private void sendSaleError(int requestId, Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) failure = failure.getCause();
+        if (failure instanceof IllegalArgumentException) {
+            sendError(requestId, "Invalid sale data");
+        } else if (failure instanceof IllegalStateException) {
+            sendError(requestId, "I/O error");
+        } else {
+            sendError(requestId, "Server error");
         }
     }
 
-    private void closeNow() {
+    private void trackWait(CompletableFuture<?> wait) {
+        pendingWaits.add(wait);
+        if (!running && pendingWaits.remove(wait)) wait.cancel(false);
+    }
+
+    void closeNow() {
         running = false;
+        flowLock.lock();
+        try {
+            slotFree.signalAll();
+        } finally {
+            flowLock.unlock();
+        }
+        outLock.lock();
+        try {
+            responsesReady.signalAll();
+            responsesDrained.signalAll();
+        } finally {
+            outLock.unlock();
+        }
         try {
-            socket.close();
+            connection.close();
         } catch (IOException e) {
             logIOException("ClientHandler.closeNow", e);
         }
+        for (CompletableFuture<?> wait : pendingWaits) {
+            if (pendingWaits.remove(wait)) wait.cancel(false);
+        }
     }
 
-    private void sendOk(final int requestId) {
-        synchronized (outLock) {
-            if (!running) return;
-            try {
-                out.writeInt(requestId);
-                out.writeByte(ProtocolConstants.STATUS_OK);
-                out.flush();
-            } catch (IOException e) {
-                logIOException("ClientHandler.sendOk", e);
-                closeNow();
-            }
+    private void enqueueResponse(ResponseFrame frame) {
+        if (!running) return;
+        long pending = pendingResponseBytes.addAndGet(frame.size());
+        if (pending > MAX_PENDING_RESPONSE_BYTES) {
+            System.err.println("ClientHandler.enqueueResponse: client is not consuming responses");
+            closeNow();
+            return;
+        }
+        pendingResponses.add(frame);
+
+        Runnable flush = flushResponses;
+        if (flush != null) {
+            if (writeScheduled.compareAndSet(false, true)) flush.run();
+            return;
+        }
+        outLock.lock();
+        try {
+            responsesReady.signal();
+        } finally {
+            outLock.unlock();
         }
     }
 
-    private void sendOkDouble(final int requestId, final double v) {
-        synchronized (outLock) {
-            if (!running) return;
+    void writeResponses() {
+        writeScheduled.set(false);
+        writePendingResponses();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            outLock.lock();
             try {
-                out.writeInt(requestId);
-                out.writeByte(ProtocolConstants.STATUS_OK);
-                out.writeDouble(v);
-                out.flush();
-            } catch (IOException e) {
-                logIOException("ClientHandler.sendOkDouble", e);
-                closeNow();
+                while (running && pendingResponses.isEmpty()) responsesReady.awaitUninterruptibly();
+                if (!running) return;
+            } finally {
+                outLock.unlock();
             }
+            writePendingResponses();
         }
     }
 
-    private void sendOkBoolean(final int requestId, final boolean v) {
-        synchronized (outLock) {
-            if (!running) return;
-            try {
-                out.writeInt(requestId);
-                out.writeByte(ProtocolConstants.STATUS_OK);
-                out.writeBoolean(v);
-                out.flush();
-            } catch (IOException e) {
-                logIOException("ClientHandler.sendOkBoolean", e);
-                closeNow();
+    private void writePendingResponses() {
+        try {
+            ResponseFrame frame;
+            while ((frame = pendingResponses.poll()) != null) {
+                pendingResponseBytes.addAndGet(-frame.size());
+                if (running) frame.writeTo(out);
             }
+            if (running) out.flush();
+        } catch (IOException e) {
+            if (running) logIOException("ClientHandler.writePendingResponses", e);
+            closeNow();
+        }
+        outLock.lock();
+        try {
+            responsesDrained.signalAll();
+        } finally {
+            outLock.unlock();
         }
     }
 
-    private void sendOkConsecutive(final int requestId, final String product) {
-        synchronized (outLock) {
-            if (!running) return;
+    private void enqueueStreamChunk(ResponseFrame frame) {
+        enqueueResponse(frame);
+        try {
+            outLock.lock();
             try {
-                out.writeInt(requestId);
-                out.writeByte(ProtocolConstants.STATUS_OK);
-                if (product != null) {
-                    out.writeBoolean(true);
-                    out.writeUTF(product);
-                } else {
-                    out.writeBoolean(false);
+                while (running && pendingResponseBytes.get() > STREAM_WINDOW_BYTES) {
+                    responsesDrained.await(100, TimeUnit.MILLISECONDS);
                 }
-                out.flush();
-            } catch (IOException e) {
-                logIOException("ClientHandler.sendOkConsecutive", e);
-                closeNow();
+            } finally {
+                outLock.unlock();
             }
+            OutputWindow window = outputWindow;
+            if (window != null) window.awaitBelow(STREAM_WINDOW_BYTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StreamAborted();
         }
+        if (!running) throw new StreamAborted();
     }
 
-    private void sendError(final int requestId, final String msg) {
-        synchronized (outLock) {
-            if (!running) return;
-            try {
-                out.writeInt(requestId);
-                out.writeByte(ProtocolConstants.STATUS_ERROR);
-                out.writeUTF(msg);
-                out.flush();
-            } catch (IOException e) {
-                logIOException("ClientHandler.sendError", e);
-                closeNow();
+    private final class EventStream implements RecordConsumer {
+        private final int requestId;
+        private final Map<Integer, Integer> productIndex = new HashMap<>();
+        private final List<String> newProducts = new ArrayList<>();
+        private final int[] indexes = new int[STREAM_CHUNK_EVENTS];
+        private final int[] quantities = new int[STREAM_CHUNK_EVENTS];
+        private final double[] prices = new double[STREAM_CHUNK_EVENTS];
+        private int count;
+        private long total;
+
+        EventStream(int requestId) {
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void accept(int productCode, int quantity, double price) {
+            Integer index = productIndex.get(productCode);
+            if (index == null) {
+                index = productIndex.size();
+                productIndex.put(productCode, index);
+                newProducts.add(salesStore.productName(productCode));
+            }
+            indexes[count] = index;
+            quantities[count] = quantity;
+            prices[count] = price;
+            count++;
+            if (count == STREAM_CHUNK_EVENTS) flushChunk();
+        }
+
+        private void flushChunk() {
+            ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_CHUNK);
+            frame.writeInt(newProducts.size());
+            for (String p : newProducts) frame.writeUTF(p);
+            frame.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                frame.writeInt(indexes[i]);
+                frame.writeInt(quantities[i]);
+                frame.writeDouble(prices[i]);
             }
+            total += count;
+            count = 0;
+            newProducts.clear();
+            enqueueStreamChunk(frame);
+        }
+
+        void finish() {
+            if (count > 0 || !newProducts.isEmpty()) flushChunk();
+            ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_OK);
+            frame.writeLong(total);
+            enqueueResponse(frame);
+        }
+    }
+
+    private void sendOk(final int requestId) {
+        enqueueResponse(new ResponseFrame(requestId, ProtocolConstants.STATUS_OK));
+    }
+
+    private void sendOkDouble(final int requestId, final double v) {
+        ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_OK);
+        frame.writeDouble(v);
+        enqueueResponse(frame);
+    }
+
+    private void sendOkBitmap(final int requestId, final boolean[] bits) {
+        byte[] bitmap = new byte[(bits.length + 7) / 8];
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) bitmap[i >> 3] |= (byte) (1 << (i & 7));
+        }
+
+        ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_OK);
+        frame.writeInt(bits.length);
+        frame.write(bitmap, 0, bitmap.length);
+        enqueueResponse(frame);
+    }
+
+    private void sendOkBoolean(final int requestId, final boolean v) {
+        ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_OK);
+        frame.writeBoolean(v);
+        enqueueResponse(frame);
+    }
+
+    private void sendOkConsecutive(final int requestId, final String product) {
+        ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_OK);
+        if (product != null) {
+            frame.writeBoolean(true);
+            frame.writeUTF(product);
+        } else {
+            frame.writeBoolean(false);
         }
+        enqueueResponse(frame);
+    }
+
+    private void sendError(final int requestId, final String msg) {
+        ResponseFrame frame = new ResponseFrame(requestId, ProtocolConstants.STATUS_ERROR);
+        frame.writeUTF(msg);
+        enqueueResponse(frame);
     }
 }
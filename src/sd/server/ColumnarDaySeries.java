@@ -0,0 +1,116 @@
+package sd.server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+final class ColumnarDaySeries implements DaySeries {
+    static final long BYTES_PER_RECORD = 4 + 4 + 8 + 4;
+
+    private final int size;
+    private final int[] productCode;
+    private final int[] quantity;
+    private final double[] price;
+
+    private final int[] indexCodes;
+    private final int[] indexStart;
+    private final int[] indexRows;
+
+    private ColumnarDaySeries(int size, int[] productCode, int[] quantity, double[] price) {
+        this.size = size;
+        this.productCode = productCode;
+        this.quantity = quantity;
+        this.price = price;
+
+        int maxCode = -1;
+        for (int i = 0; i < size; i++) {
+            if (productCode[i] > maxCode) maxCode = productCode[i];
+        }
+
+        int[] counts = new int[maxCode + 1];
+        for (int i = 0; i < size; i++) counts[productCode[i]]++;
+
+        int distinct = 0;
+        for (int c : counts) {
+            if (c > 0) distinct++;
+        }
+
+        this.indexCodes = new int[distinct];
+        this.indexStart = new int[distinct + 1];
+        int[] slot = new int[maxCode + 1];
+        int k = 0;
+        int offset = 0;
+        for (int code = 0; code <= maxCode; code++) {
+            if (counts[code] == 0) continue;
+            indexCodes[k] = code;
+            indexStart[k] = offset;
+            slot[code] = offset;
+            offset += counts[code];
+            k++;
+        }
+        indexStart[distinct] = offset;
+
+        this.indexRows = new int[size];
+        for (int i = 0; i < size; i++) {
+            indexRows[slot[productCode[i]]++] = i;
+        }
+    }
+
+    static final class Builder implements RecordConsumer {
+        private int size;
+        private int[] productCode = new int[1024];
+        private int[] quantity = new int[1024];
+        private double[] price = new double[1024];
+
+        @Override
+        public void accept(int code, int qty, double p) {
+            if (size == productCode.length) {
+                int cap = size * 2;
+                productCode = Arrays.copyOf(productCode, cap);
+                quantity = Arrays.copyOf(quantity, cap);
+                price = Arrays.copyOf(price, cap);
+            }
+            productCode[size] = code;
+            quantity[size] = qty;
+            price[size] = p;
+            size++;
+        }
+
+        ColumnarDaySeries build() {
+            return new ColumnarDaySeries(size,
+                    Arrays.copyOf(productCode, size), Arrays.copyOf(quantity, size), Arrays.copyOf(price, size));
+        }
+    }
+
+    @Override
+    public void scan(BitSet productCodes, RecordConsumer consumer) {
+        int matches = 0;
+        for (int code = productCodes.nextSetBit(0); code >= 0; code = productCodes.nextSetBit(code + 1)) {
+            int k = Arrays.binarySearch(indexCodes, code);
+            if (k >= 0) matches += indexStart[k + 1] - indexStart[k];
+        }
+        if (matches == 0) return;
+
+        int[] rows = new int[matches];
+        int n = 0;
+        for (int code = productCodes.nextSetBit(0); code >= 0; code = productCodes.nextSetBit(code + 1)) {
+            int k = Arrays.binarySearch(indexCodes, code);
+            if (k < 0) continue;
+            int len = indexStart[k + 1] - indexStart[k];
+            System.arraycopy(indexRows, indexStart[k], rows, n, len);
+            n += len;
+        }
+        Arrays.sort(rows);
+
+        for (int row : rows) consumer.accept(productCode[row], quantity[row], price[row]);
+    }
+
+    @Override
+    public void forEach(RecordConsumer consumer) {
+        for (int row = 0; row < size; row++) consumer.accept(productCode[row], quantity[row], price[row]);
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return 64 + size * BYTES_PER_RECORD + indexCodes.length * 8L;
+    }
+}
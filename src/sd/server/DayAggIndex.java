@@ -0,0 +1,126 @@
+package sd.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+final class DayAggIndex {
+    private static final int INDEX_FILE_MAGIC = 0x53444932;
+    private static final int ENTRY_SIZE = 4 + 8 + 8 + 8 + 4;
+
+    private final int[] codes;
+    private final long[] quantity;
+    private final double[] volume;
+    private final double[] maxPrice;
+    private final int[] count;
+
+    private DayAggIndex(int size) {
+        this.codes = new int[size];
+        this.quantity = new long[size];
+        this.volume = new double[size];
+        this.maxPrice = new double[size];
+        this.count = new int[size];
+    }
+
+    static final class Builder implements RecordConsumer {
+        private final Map<Integer, DayProductAgg> byProduct = new HashMap<>();
+
+        @Override
+        public void accept(int productCode, int quantity, double price) {
+            DayProductAgg a = byProduct.get(productCode);
+            if (a == null) {
+                a = new DayProductAgg();
+                byProduct.put(productCode, a);
+            }
+            a.add(quantity, price);
+        }
+
+        DayAggIndex build() {
+            int[] sorted = new int[byProduct.size()];
+            int i = 0;
+            for (Integer code : byProduct.keySet()) sorted[i++] = code;
+            Arrays.sort(sorted);
+
+            DayAggIndex index = new DayAggIndex(sorted.length);
+            for (i = 0; i < sorted.length; i++) {
+                DayProductAgg a = byProduct.get(sorted[i]);
+                index.codes[i] = sorted[i];
+                index.quantity[i] = a.quantity;
+                index.volume[i] = a.volume;
+                index.maxPrice[i] = a.maxPrice;
+                index.count[i] = a.count;
+            }
+            return index;
+        }
+    }
+
+    DayProductAgg get(int productCode) {
+        int k = Arrays.binarySearch(codes, productCode);
+        DayProductAgg a = new DayProductAgg();
+        if (k < 0) return a;
+        a.quantity = quantity[k];
+        a.volume = volume[k];
+        a.maxPrice = maxPrice[k];
+        a.hasMax = count[k] > 0;
+        a.count = count[k];
+        return a;
+    }
+
+    long estimatedBytes() {
+        return 64 + codes.length * (long) ENTRY_SIZE;
+    }
+
+    static DayAggIndex read(File f) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != INDEX_FILE_MAGIC) throw new IOException("Bad index header in " + f);
+            int size = in.readInt();
+            if (size < 0 || f.length() != 8 + (long) size * ENTRY_SIZE) throw new IOException("Truncated index " + f);
+
+            DayAggIndex index = new DayAggIndex(size);
+            for (int i = 0; i < size; i++) {
+                index.codes[i] = in.readInt();
+                index.quantity[i] = in.readLong();
+                index.volume[i] = in.readDouble();
+                index.maxPrice[i] = in.readDouble();
+                index.count[i] = in.readInt();
+            }
+            return index;
+        }
+    }
+
+    void write(File tmp) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(INDEX_FILE_MAGIC);
+            out.writeInt(codes.length);
+            for (int i = 0; i < codes.length; i++) {
+                out.writeInt(codes[i]);
+                out.writeLong(quantity[i]);
+                out.writeDouble(volume[i]);
+                out.writeDouble(maxPrice[i]);
+                out.writeInt(count[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    static void replace(File tmp, File f) throws IOException {
+        if (f.exists() && !f.delete()) {
+            tmp.delete();
+            throw new IOException("Could not replace " + f);
+        }
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package sd.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class DayCache<V> {
+    private static final class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long budgetBytes;
+    private final int maxEntries;
+    private final int[] frequency;
+    private final int sampleSize;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<Integer, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private int samples;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    DayCache(int days, long budgetBytes, int maxEntries) {
+        this.budgetBytes = Math.max(0, budgetBytes);
+        this.maxEntries = Math.max(0, maxEntries);
+        this.frequency = new int[days];
+        this.sampleSize = Math.max(64, days * 16);
+    }
+
+    V get(int day) {
+        lock.lock();
+        try {
+            recordAccess(day);
+            Entry<V> e = entries.get(day);
+            if (e == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return e.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    V peek(int day) {
+        lock.lock();
+        try {
+            Entry<V> e = entries.get(day);
+            return (e == null) ? null : e.value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean admits(int day, long weight) {
+        lock.lock();
+        try {
+            return victimsFor(day, weight) != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    V putIfAbsent(int day, V value, long weight) {
+        lock.lock();
+        try {
+            Entry<V> existing = entries.get(day);
+            if (existing != null) return existing.value;
+
+            List<Integer> victims = victimsFor(day, weight);
+            if (victims == null) {
+                rejections++;
+                return value;
+            }
+            for (Integer victim : victims) {
+                this.weight -= entries.remove(victim).weight;
+                evictions++;
+            }
+            entries.put(day, new Entry<>(value, weight));
+            this.weight += weight;
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void remove(int day) {
+        lock.lock();
+        try {
+            Entry<V> e = entries.remove(day);
+            if (e != null) weight -= e.weight;
+            frequency[day] = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions + " rejected=" + rejections
+                    + " entries=" + entries.size() + " bytes=" + weight + "/" + budgetBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordAccess(int day) {
+        if (frequency[day] < Integer.MAX_VALUE) frequency[day]++;
+        if (++samples >= sampleSize) {
+            samples = 0;
+            for (int i = 0; i < frequency.length; i++) frequency[i] >>>= 1;
+        }
+    }
+
+    private List<Integer> victimsFor(int day, long weight) {
+        if (weight > budgetBytes || maxEntries == 0) return null;
+
+        long freeBytes = budgetBytes - this.weight;
+        int freeSlots = maxEntries - entries.size();
+        if (freeBytes >= weight && freeSlots > 0) return Arrays.asList();
+
+        int candidateFrequency = frequency[day];
+        List<Integer> victims = new ArrayList<>();
+        for (Map.Entry<Integer, Entry<V>> e : entries.entrySet()) {
+            if (frequency[e.getKey()] >= candidateFrequency) return null;
+            victims.add(e.getKey());
+            freeBytes += e.getValue().weight;
+            freeSlots++;
+            if (freeBytes >= weight && freeSlots > 0) return victims;
+        }
+        return null;
+    }
+}
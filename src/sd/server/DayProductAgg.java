@@ -0,0 +1,19 @@
+package sd.server;
+
+final class DayProductAgg {
+    long quantity;
+    double volume;
+    double maxPrice;
+    boolean hasMax;
+    int count;
+
+    void add(int quantity, double price) {
+        this.quantity += quantity;
+        this.volume += quantity * price;
+        if (!hasMax || price > maxPrice) {
+            maxPrice = price;
+            hasMax = true;
+        }
+        count++;
+    }
+}
@@ -0,0 +1,11 @@
+package sd.server;
+
+import java.util.BitSet;
+
+interface DaySeries {
+    void scan(BitSet productCodes, RecordConsumer consumer);
+
+    void forEach(RecordConsumer consumer);
+
+    long estimatedBytes();
+}
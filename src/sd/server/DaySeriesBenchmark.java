@@ -0,0 +1,100 @@
+package sd.server;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class DaySeriesBenchmark {
+    private static final int DEFAULT_RECORDS = 1_000_000;
+    private static final int DEFAULT_PRODUCTS = 50_000;
+    private static final int AGGREGATE_QUERIES = 2_000;
+    private static final int SCAN_QUERIES = 200;
+    private static final int SCAN_PRODUCTS = 20;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int records = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_RECORDS;
+        int products = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_PRODUCTS;
+
+        System.out.println("Day series benchmark: " + records + " records, " + products + " products");
+
+        for (int round = 0; round < 2; round++) {
+            boolean report = round == 1;
+            run("objects", records, products, false, report);
+            run("columnar", records, products, true, report);
+        }
+        if (sink == 42) System.out.println();
+    }
+
+    private static void run(String name, int records, int products, boolean columnar, boolean report) {
+        Random rnd = new Random(7);
+
+        long before = usedMemory();
+        long loadStart = System.nanoTime();
+        DaySeries series;
+        if (columnar) {
+            ColumnarDaySeries.Builder builder = new ColumnarDaySeries.Builder();
+            for (int i = 0; i < records; i++) builder.accept(rnd.nextInt(products), 1 + rnd.nextInt(10), 1 + rnd.nextInt(10_000) / 100.0);
+            series = builder.build();
+        } else {
+            ObjectDaySeries list = new ObjectDaySeries();
+            for (int i = 0; i < records; i++) list.add(rnd.nextInt(products), 1 + rnd.nextInt(10), 1 + rnd.nextInt(10_000) / 100.0);
+            series = list;
+        }
+        long loadNanos = System.nanoTime() - loadStart;
+        long after = usedMemory();
+
+        long indexStart = System.nanoTime();
+        DayAggIndex.Builder indexBuilder = new DayAggIndex.Builder();
+        series.forEach(indexBuilder);
+        DayAggIndex index = indexBuilder.build();
+        long indexNanos = System.nanoTime() - indexStart;
+
+        long aggStart = System.nanoTime();
+        for (int i = 0; i < AGGREGATE_QUERIES; i++) {
+            sink += index.get(rnd.nextInt(products)).quantity;
+        }
+        long aggNanos = System.nanoTime() - aggStart;
+
+        final long[] matched = new long[1];
+        RecordConsumer counter = new RecordConsumer() {
+            @Override
+            public void accept(int productCode, int quantity, double price) {
+                matched[0] += quantity;
+            }
+        };
+        long scanStart = System.nanoTime();
+        for (int i = 0; i < SCAN_QUERIES; i++) {
+            BitSet set = new BitSet(products);
+            for (int j = 0; j < SCAN_PRODUCTS; j++) set.set(rnd.nextInt(products));
+            series.scan(set, counter);
+        }
+        long scanNanos = System.nanoTime() - scanStart;
+        sink += matched[0];
+
+        if (!report) return;
+
+        System.out.println(String.format("%-9s load=%6d ms  heap=%6.1f MB (estimated %6.1f MB)  index=%6d ms  aggregate=%8.1f us/op  filter(%d)=%8.1f us/op",
+                name,
+                loadNanos / 1_000_000,
+                (after - before) / (1024.0 * 1024.0),
+                series.estimatedBytes() / (1024.0 * 1024.0),
+                indexNanos / 1_000_000,
+                aggNanos / 1000.0 / AGGREGATE_QUERIES,
+                SCAN_PRODUCTS,
+                scanNanos / 1000.0 / SCAN_QUERIES));
+    }
+
+    private static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,74 @@
+package sd.server;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class ForkJoinExecutor implements RequestExecutor {
+    private final ForkJoinPool pool;
+    private final int capacity;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    ForkJoinExecutor(int parallelism, int capacity) {
+        this("worker-", parallelism, capacity);
+    }
+
+    ForkJoinExecutor(final String namePrefix, int parallelism, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName(namePrefix + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }
+        }, null, true);
+    }
+
+    @Override
+    public boolean execute(final TaskLane lane, Runnable r) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        if (lane.add(r)) pool.execute(new LaneRunner(lane));
+        return true;
+    }
+
+    @Override
+    public int queueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    private final class LaneRunner implements Runnable {
+        private final TaskLane lane;
+
+        LaneRunner(TaskLane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            Runnable r = lane.poll();
+            queued.decrementAndGet();
+            if (!lane.ordered && lane.release()) pool.execute(new LaneRunner(lane));
+            try {
+                r.run();
+            } catch (Throwable t) {
+                System.err.println("ClientHandler.worker: " + t.getMessage());
+                t.printStackTrace(System.err);
+            }
+            if (lane.ordered && lane.release()) pool.execute(this);
+        }
+    }
+}
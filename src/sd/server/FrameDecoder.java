@@ -0,0 +1,105 @@
+package sd.server;
+
+import sd.common.ProtocolConstants;
+
+import java.nio.ByteBuffer;
+
+final class FrameDecoder {
+    static final int HEADER_SIZE = 5;
+
+    private static final int UTF = -1;
+    private static final int UTF_LIST = -2;
+    private static final int SALE_RECORDS = -3;
+    private static final int SALE_RECORD_SIZE = 4 + 4 + 8;
+
+    private static final int[] TWO_STRINGS = {UTF, UTF};
+    private static final int[] ADD_SALE = {UTF, 4 + 8};
+    private static final int[] AGGREGATE = {1, UTF, 4};
+    private static final int[] AGGREGATE_MULTI = {1, UTF_LIST, 4};
+    private static final int[] FILTER_EVENTS = {4, UTF_LIST};
+    private static final int[] ADD_SALES = {UTF_LIST, SALE_RECORDS};
+    private static final int[] WAIT_CONSECUTIVE = {4};
+    private static final int[] EMPTY = {};
+
+    private int[] layout;
+    private int field;
+    private int remaining;
+    private long length;
+
+    int frameLength(ByteBuffer buf) {
+        int start = buf.position();
+        long available = buf.limit() - start;
+        if (layout == null) {
+            if (available < HEADER_SIZE) return -1;
+            layout = layoutFor(buf.get(start + 4));
+            field = 0;
+            remaining = -1;
+            length = HEADER_SIZE;
+        }
+
+        while (field < layout.length) {
+            int kind = layout[field];
+            if (kind > 0) {
+                if (available - length < kind) return -1;
+                length += kind;
+            } else if (kind == UTF) {
+                if (!skipUTF(buf, start, available)) return -1;
+            } else {
+                if (remaining < 0) {
+                    if (available - length < 4) return -1;
+                    remaining = Math.max(0, buf.getInt(start + (int) length));
+                    length += 4;
+                }
+                if (kind == UTF_LIST) {
+                    while (remaining > 0) {
+                        if (!skipUTF(buf, start, available)) return -1;
+                        remaining--;
+                    }
+                } else {
+                    long bytes = (long) remaining * SALE_RECORD_SIZE;
+                    if (available - length < bytes) return -1;
+                    length += bytes;
+                }
+                remaining = -1;
+            }
+            field++;
+        }
+        return (int) length;
+    }
+
+    void reset() {
+        layout = null;
+    }
+
+    private boolean skipUTF(ByteBuffer buf, int start, long available) {
+        if (available - length < 2) return false;
+        int len = buf.getShort(start + (int) length) & 0xFFFF;
+        if (available - length < 2 + len) return false;
+        length += 2 + len;
+        return true;
+    }
+
+    private static int[] layoutFor(byte opcode) {
+        switch (opcode) {
+            case ProtocolConstants.MSG_LOGIN:
+            case ProtocolConstants.MSG_REGISTER:
+            case ProtocolConstants.MSG_WAIT_SIMULTANEOUS:
+                return TWO_STRINGS;
+            case ProtocolConstants.MSG_ADD_SALE:
+                return ADD_SALE;
+            case ProtocolConstants.MSG_AGGREGATE:
+                return AGGREGATE;
+            case ProtocolConstants.MSG_AGGREGATE_MULTI:
+                return AGGREGATE_MULTI;
+            case ProtocolConstants.MSG_FILTER_EVENTS:
+            case ProtocolConstants.MSG_FILTER_EVENTS_STREAM:
+                return FILTER_EVENTS;
+            case ProtocolConstants.MSG_ADD_SALES:
+                return ADD_SALES;
+            case ProtocolConstants.MSG_WAIT_CONSECUTIVE:
+                return WAIT_CONSECUTIVE;
+            default:
+                return EMPTY;
+        }
+    }
+}
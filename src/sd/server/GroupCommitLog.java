@@ -0,0 +1,313 @@
+package sd.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class GroupCommitLog {
+    private static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    private final ServerOptions.Durability durability;
+    private final long fsyncIntervalNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final ArrayDeque<Batch> completions = new ArrayDeque<>();
+
+    private final Executor completionExecutor;
+
+    private FileChannel channel;
+    private boolean writing;
+    private boolean completing;
+    private boolean dirty;
+    private long lastForce;
+
+    private ByteBuffer batchBuffer = ByteBuffer.allocateDirect(MAX_BATCH_BYTES);
+
+    private static final class Entry {
+        final byte[] data;
+        final Runnable onWritten;
+        final CompletableFuture<Void> future;
+
+        Entry(byte[] data, Runnable onWritten) {
+            this.data = data;
+            this.onWritten = onWritten;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    private static final class Batch {
+        final List<Entry> entries;
+        final IllegalStateException failure;
+
+        Batch(List<Entry> entries, IllegalStateException failure) {
+            this.entries = entries;
+            this.failure = failure;
+        }
+    }
+
+    private void logIOException(String where, IOException e) {
+        System.err.println(where + ": " + e.getMessage());
+        e.printStackTrace(System.err);
+    }
+
+    GroupCommitLog(ServerOptions.Durability durability, long fsyncIntervalMs, Executor completionExecutor) {
+        this.durability = durability;
+        this.completionExecutor = completionExecutor;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs));
+        this.lastForce = System.nanoTime();
+
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                appendLoop();
+            }
+        }, "sales-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    boolean isOpen() {
+        lock.lock();
+        try {
+            return channel != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void open(File file) throws IOException {
+        lock.lock();
+        try {
+            if (channel != null) return;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            awaitIdleUnlocked();
+            if (channel == null) return;
+            try {
+                if (durability != ServerOptions.Durability.NONE) channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                logIOException("GroupCommitLog.close", e);
+            } finally {
+                channel = null;
+                dirty = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    CompletableFuture<Void> append(byte[] record, Runnable onWritten) {
+        Entry e = new Entry(record, onWritten);
+        lock.lock();
+        try {
+            if (channel == null) {
+                e.future.completeExceptionally(new IllegalStateException("I/O error"));
+                return e.future;
+            }
+            queue.addLast(e);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        return e.future;
+    }
+
+    private void awaitIdleUnlocked() {
+        boolean interrupted = false;
+        while (!queue.isEmpty() || writing || completing) {
+            try {
+                idle.await();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private void appendLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            FileChannel ch;
+            boolean idleForce = false;
+            lock.lock();
+            try {
+                while (queue.isEmpty() && !idleForce) {
+                    try {
+                        if (durability == ServerOptions.Durability.INTERVAL && dirty) {
+                            long wait = fsyncIntervalNanos - (System.nanoTime() - lastForce);
+                            if (wait <= 0) {
+                                lastForce = System.nanoTime();
+                                dirty = false;
+                                idleForce = channel != null;
+                                continue;
+                            }
+                            notEmpty.awaitNanos(wait);
+                        } else {
+                            notEmpty.await();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+
+                int bytes = 0;
+                while (!idleForce && !queue.isEmpty()) {
+                    Entry next = queue.peekFirst();
+                    if (!batch.isEmpty() && bytes + next.data.length > MAX_BATCH_BYTES) break;
+                    batch.add(queue.removeFirst());
+                    bytes += next.data.length;
+                }
+                ch = channel;
+                writing = true;
+            } finally {
+                lock.unlock();
+            }
+
+            if (idleForce) {
+                forceIdle(ch);
+                continue;
+            }
+
+            IllegalStateException failure = null;
+            try {
+                writeBatch(ch, batch);
+            } catch (IOException e) {
+                logIOException("GroupCommitLog.writeBatch", e);
+                failure = new IllegalStateException("I/O error");
+            }
+
+            boolean startCompleting;
+            lock.lock();
+            try {
+                if (failure != null && channel == ch) {
+                    try {
+                        ch.close();
+                    } catch (IOException e) {
+                        logIOException("GroupCommitLog.closeAfterFailure", e);
+                    }
+                    channel = null;
+                }
+                writing = false;
+                completions.addLast(new Batch(batch, failure));
+                startCompleting = !completing;
+                completing = true;
+            } finally {
+                lock.unlock();
+            }
+
+            if (startCompleting) {
+                completionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        completeBatches();
+                    }
+                });
+            }
+            batch = new ArrayList<>();
+        }
+    }
+
+    private void completeBatches() {
+        while (true) {
+            Batch batch;
+            lock.lock();
+            try {
+                batch = completions.pollFirst();
+                if (batch == null) {
+                    completing = false;
+                    if (queue.isEmpty() && !writing) idle.signalAll();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            for (Entry e : batch.entries) {
+                if (batch.failure != null) {
+                    e.future.completeExceptionally(batch.failure);
+                    continue;
+                }
+                if (e.onWritten != null) {
+                    try {
+                        e.onWritten.run();
+                    } catch (RuntimeException ex) {
+                        System.err.println("GroupCommitLog.onWritten: " + ex.getMessage());
+                        ex.printStackTrace(System.err);
+                    }
+                }
+                e.future.complete(null);
+            }
+        }
+    }
+
+    private void writeBatch(FileChannel ch, List<Entry> batch) throws IOException {
+        if (ch == null) throw new IOException("Day file is not open");
+
+        int bytes = 0;
+        for (Entry e : batch) bytes += e.data.length;
+        if (batchBuffer.capacity() < bytes) batchBuffer = ByteBuffer.allocateDirect(bytes);
+
+        batchBuffer.clear();
+        for (Entry e : batch) batchBuffer.put(e.data);
+        batchBuffer.flip();
+        while (batchBuffer.hasRemaining()) ch.write(batchBuffer);
+
+        if (durability == ServerOptions.Durability.BATCH) {
+            ch.force(false);
+        } else if (durability == ServerOptions.Durability.INTERVAL) {
+            boolean forceNow;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                forceNow = now - lastForce >= fsyncIntervalNanos;
+                if (forceNow) {
+                    lastForce = now;
+                    dirty = false;
+                } else {
+                    dirty = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (forceNow) ch.force(false);
+        }
+    }
+
+    private void forceIdle(FileChannel ch) {
+        try {
+            ch.force(false);
+        } catch (IOException e) {
+            logIOException("GroupCommitLog.force", e);
+        }
+        lock.lock();
+        try {
+            writing = false;
+            if (queue.isEmpty() && !completing) idle.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package sd.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+final class NioEventLoop implements Runnable {
+    private static final int INITIAL_READ_BUFFER = 8 * 1024;
+    private static final int INITIAL_WRITE_BUFFER = 8 * 1024;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_PENDING_OUTPUT = 64 * 1024 * 1024;
+    private static final long QUEUE_RETRY_MS = 1;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> pendingRegistrations;
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks;
+    private final ArrayList<Connection> deferredConnections = new ArrayList<>();
+    private final UserManager userManager;
+    private final SalesStore salesStore;
+    private final RequestExecutor workerPool;
+    private final RequestExecutor streamPool;
+    private final int maxInFlight;
+    private final boolean orderedIngest;
+    private final Thread thread;
+
+    private void logIOException(String where, IOException e) {
+        System.err.println(where + ": " + e.getMessage());
+        e.printStackTrace(System.err);
+    }
+
+    NioEventLoop(int index, UserManager userManager, SalesStore salesStore, RequestExecutor workerPool, RequestExecutor streamPool, int maxInFlight, boolean orderedIngest) throws IOException {
+        this.selector = Selector.open();
+        this.pendingRegistrations = new ConcurrentLinkedQueue<>();
+        this.pendingTasks = new ConcurrentLinkedQueue<>();
+        this.maxInFlight = maxInFlight;
+        this.orderedIngest = orderedIngest;
+        this.userManager = userManager;
+        this.salesStore = salesStore;
+        this.workerPool = workerPool;
+        this.streamPool = streamPool;
+        this.thread = new Thread(this, "event-loop-" + index);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+    }
+
+    private void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (deferredConnections.isEmpty()) selector.select();
+                else selector.select(QUEUE_RETRY_MS);
+            } catch (IOException e) {
+                logIOException("NioEventLoop.select", e);
+                return;
+            }
+
+            registerPending();
+            runPendingTasks();
+            retryDeferred();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection c = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) c.onWritable();
+                    if (key.isValid() && key.isReadable()) c.onReadable();
+                } catch (CancelledKeyException e) {
+                    c.handler.closeNow();
+                } catch (RuntimeException e) {
+                    System.err.println("NioEventLoop.run: " + e.getMessage());
+                    e.printStackTrace(System.err);
+                    c.handler.closeNow();
+                }
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("NioEventLoop.runPendingTasks: " + e.getMessage());
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private void retryDeferred() {
+        if (deferredConnections.isEmpty()) return;
+        Connection[] waiting = deferredConnections.toArray(new Connection[0]);
+        deferredConnections.clear();
+        for (Connection c : waiting) {
+            if (c.handler.retryDeferred()) c.resumeReading();
+            else deferredConnections.add(c);
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            } catch (IOException e) {
+                logIOException("NioEventLoop.registerPending", e);
+                try {
+                    channel.close();
+                } catch (IOException ce) {
+                    logIOException("NioEventLoop.registerPending.close", ce);
+                }
+            }
+        }
+    }
+
+    private final class Connection implements Closeable {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ClientHandler handler;
+        private final Object writeLock = new Object();
+        private final FrameDecoder decoder = new FrameDecoder();
+
+        private ByteBuffer inBuf;
+        private ByteBuffer outBuf;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            this.inBuf = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+            this.outBuf = ByteBuffer.allocate(INITIAL_WRITE_BUFFER);
+            this.handler = new ClientHandler(this, new ChannelOutputStream(), userManager, salesStore, workerPool, streamPool, maxInFlight, orderedIngest);
+            this.handler.setResumeReads(new Runnable() {
+                @Override
+                public void run() {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            resumeReading();
+                        }
+                    });
+                }
+            });
+            this.handler.setRetryLater(new Runnable() {
+                @Override
+                public void run() {
+                    deferredConnections.add(Connection.this);
+                }
+            });
+            this.handler.setFlushResponses(new Runnable() {
+                @Override
+                public void run() {
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            handler.writeResponses();
+                        }
+                    });
+                }
+            });
+            this.handler.setOutputWindow(new OutputWindow() {
+                @Override
+                public void awaitBelow(int bytes) throws InterruptedException {
+                    if (Thread.currentThread() == thread) return;
+                    synchronized (writeLock) {
+                        while (handler.isRunning() && outBuf.position() > bytes) writeLock.wait(100);
+                    }
+                }
+            });
+        }
+
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(inBuf);
+            } catch (IOException e) {
+                handler.closeNow();
+                return;
+            }
+            if (n < 0) {
+                handler.closeNow();
+                return;
+            }
+
+            if (!processFrames()) return;
+
+            if (!inBuf.hasRemaining() && handler.hasCapacity()) {
+                if (inBuf.capacity() >= MAX_FRAME_SIZE) {
+                    System.err.println("NioEventLoop.onReadable: frame too large");
+                    handler.closeNow();
+                    return;
+                }
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(MAX_FRAME_SIZE, inBuf.capacity() * 2));
+                inBuf.flip();
+                bigger.put(inBuf);
+                inBuf = bigger;
+            }
+        }
+
+        private void resumeReading() {
+            if (!key.isValid() || !handler.isRunning()) return;
+            if (!processFrames()) return;
+            if (handler.hasCapacity()) {
+                try {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                } catch (CancelledKeyException e) {
+                    handler.closeNow();
+                }
+            }
+        }
+
+        private boolean processFrames() {
+            inBuf.flip();
+            try {
+                while (handler.isRunning()) {
+                    if (!handler.hasCapacity()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        break;
+                    }
+                    int len = decoder.frameLength(inBuf);
+                    if (len < 0) break;
+                    decoder.reset();
+
+                    int start = inBuf.position();
+                    int requestId = inBuf.getInt(start);
+                    byte opcode = inBuf.get(start + 4);
+                    byte[] payload = new byte[len - FrameDecoder.HEADER_SIZE];
+                    inBuf.position(start + FrameDecoder.HEADER_SIZE);
+                    inBuf.get(payload);
+
+                    handler.dispatch(requestId, opcode, new DataInputStream(new ByteArrayInputStream(payload)));
+                }
+            } catch (IOException e) {
+                logIOException("NioEventLoop.processFrames", e);
+                handler.closeNow();
+                return false;
+            } catch (CancelledKeyException e) {
+                handler.closeNow();
+                return false;
+            } finally {
+                inBuf.compact();
+            }
+            return true;
+        }
+
+        void onWritable() {
+            synchronized (writeLock) {
+                try {
+                    writePendingUnlocked();
+                } catch (IOException e) {
+                    handler.closeNow();
+                }
+            }
+        }
+
+        private void writePendingUnlocked() throws IOException {
+            outBuf.flip();
+            try {
+                channel.write(outBuf);
+            } finally {
+                outBuf.compact();
+                writeLock.notifyAll();
+            }
+            try {
+                if (outBuf.position() == 0) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+            } catch (CancelledKeyException e) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        private void append(byte[] b, int off, int len) throws IOException {
+            synchronized (writeLock) {
+                if (outBuf.remaining() < len) {
+                    int needed = outBuf.position() + len;
+                    if (needed > MAX_PENDING_OUTPUT) throw new IOException("Client is not consuming responses");
+                    int cap = outBuf.capacity();
+                    while (cap < needed) cap *= 2;
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(cap, MAX_PENDING_OUTPUT));
+                    outBuf.flip();
+                    bigger.put(outBuf);
+                    outBuf = bigger;
+                }
+                outBuf.put(b, off, len);
+            }
+        }
+
+        private void flushOut() throws IOException {
+            synchronized (writeLock) {
+                if (outBuf.position() == 0) return;
+                writePendingUnlocked();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+
+        private final class ChannelOutputStream extends OutputStream {
+            private final byte[] one = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                synchronized (writeLock) {
+                    one[0] = (byte) b;
+                    append(one, 0, 1);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                append(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                flushOut();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package sd.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+final class ObjectDaySeries implements DaySeries {
+    static final long BYTES_PER_RECORD = 16 + 4 + 4 + 8 + 4;
+
+    private final List<SaleRecord> records = new ArrayList<>();
+
+    void add(int productCode, int quantity, double price) {
+        records.add(new SaleRecord(productCode, quantity, price));
+    }
+
+    @Override
+    public void scan(BitSet productCodes, RecordConsumer consumer) {
+        for (SaleRecord r : records) {
+            if (productCodes.get(r.productCode)) consumer.accept(r.productCode, r.quantity, r.price);
+        }
+    }
+
+    @Override
+    public void forEach(RecordConsumer consumer) {
+        for (SaleRecord r : records) consumer.accept(r.productCode, r.quantity, r.price);
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return 64 + records.size() * BYTES_PER_RECORD;
+    }
+
+    private static final class SaleRecord {
+        final int productCode;
+        final int quantity;
+        final double price;
+
+        SaleRecord(int productCode, int quantity, double price) {
+            this.productCode = productCode;
+            this.quantity = quantity;
+            this.price = price;
+        }
+    }
+}
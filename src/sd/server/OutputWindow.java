@@ -0,0 +1,5 @@
+package sd.server;
+
+interface OutputWindow {
+    void awaitBelow(int bytes) throws InterruptedException;
+}
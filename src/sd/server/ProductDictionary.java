@@ -0,0 +1,135 @@
+package sd.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class ProductDictionary {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final boolean forceWrites;
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile String[] names = new String[INITIAL_CAPACITY];
+    private int size;
+    private boolean legacyUpgraded;
+    private RandomAccessFile storage;
+
+    private void logIOException(String where, IOException e) {
+        System.err.println(where + ": " + e.getMessage());
+        e.printStackTrace(System.err);
+    }
+
+    ProductDictionary(File file, boolean forceWrites) {
+        this.forceWrites = forceWrites;
+        try {
+            storage = new RandomAccessFile(file, "rw");
+            load();
+        } catch (IOException e) {
+            logIOException("ProductDictionary.open", e);
+            storage = null;
+        }
+    }
+
+    private void load() throws IOException {
+        long valid = 0;
+        while (true) {
+            String name;
+            try {
+                name = storage.readUTF();
+            } catch (EOFException eof) {
+                break;
+            }
+            if (name.isEmpty()) legacyUpgraded = true;
+            else addUnlocked(name);
+            valid = storage.getFilePointer();
+        }
+        if (storage.length() != valid) storage.setLength(valid);
+        storage.seek(valid);
+    }
+
+    private int addUnlocked(String name) {
+        int code = size;
+        String[] current = names;
+        if (code == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[code] = name;
+        names = current;
+        size++;
+        codes.put(name, code);
+        return code;
+    }
+
+    int lookup(String productId) {
+        Integer code = codes.get(productId);
+        return (code == null) ? -1 : code;
+    }
+
+    int codeFor(String productId) {
+        Integer code = codes.get(productId);
+        if (code != null) return code;
+        if (productId.isEmpty()) throw new IllegalArgumentException("Invalid productId");
+
+        lock.lock();
+        try {
+            code = codes.get(productId);
+            if (code != null) return code;
+            if (storage == null) throw new IllegalStateException("I/O error");
+            try {
+                storage.writeUTF(productId);
+                if (forceWrites) storage.getChannel().force(false);
+            } catch (IOException e) {
+                logIOException("ProductDictionary.codeFor", e);
+                throw new IllegalStateException("I/O error");
+            }
+            return addUnlocked(productId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isLegacyUpgradeDone() {
+        lock.lock();
+        try {
+            return legacyUpgraded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void markLegacyUpgradeDone() {
+        lock.lock();
+        try {
+            if (legacyUpgraded || storage == null) return;
+            try {
+                storage.writeUTF("");
+                storage.getChannel().force(false);
+                legacyUpgraded = true;
+            } catch (IOException e) {
+                logIOException("ProductDictionary.markLegacyUpgradeDone", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String name(int code) {
+        String[] current = names;
+        String name = (code >= 0 && code < current.length) ? current[code] : null;
+        if (name != null) return name;
+
+        lock.lock();
+        try {
+            current = names;
+            return (code >= 0 && code < size) ? current[code] : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
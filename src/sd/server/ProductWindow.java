@@ -0,0 +1,67 @@
+package sd.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+final class ProductWindow {
+    private final int slots;
+    private final long[] quantity;
+    private final double[] volume;
+    private final double[] maxPrice;
+
+    final ReentrantLock lock = new ReentrantLock();
+    int syncedEpoch = -1;
+
+    static long estimatedBytes(int slots) {
+        return 64 + 3 * (16 + 2L * slots * 8);
+    }
+
+    ProductWindow(int slots) {
+        this.slots = slots;
+        this.quantity = new long[2 * slots];
+        this.volume = new double[2 * slots];
+        this.maxPrice = new double[2 * slots];
+        Arrays.fill(maxPrice, Double.NEGATIVE_INFINITY);
+    }
+
+    void set(int slot, DayProductAgg a) {
+        int i = slot + slots;
+        quantity[i] = a.quantity;
+        volume[i] = a.volume;
+        maxPrice[i] = a.hasMax ? a.maxPrice : Double.NEGATIVE_INFINITY;
+        for (i >>= 1; i >= 1; i >>= 1) {
+            quantity[i] = quantity[2 * i] + quantity[2 * i + 1];
+            volume[i] = volume[2 * i] + volume[2 * i + 1];
+            maxPrice[i] = Math.max(maxPrice[2 * i], maxPrice[2 * i + 1]);
+        }
+    }
+
+    DayProductAgg query(int endSlot, int days) {
+        DayProductAgg a = new DayProductAgg();
+        int start = endSlot - days;
+        if (start >= 0) {
+            accumulate(start, endSlot, a);
+        } else {
+            accumulate(start + slots, slots, a);
+            accumulate(0, endSlot, a);
+        }
+        return a;
+    }
+
+    private void accumulate(int from, int to, DayProductAgg a) {
+        for (int l = from + slots, r = to + slots; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) addNode(l++, a);
+            if ((r & 1) == 1) addNode(--r, a);
+        }
+    }
+
+    private void addNode(int node, DayProductAgg a) {
+        a.quantity += quantity[node];
+        a.volume += volume[node];
+        double max = maxPrice[node];
+        if (max != Double.NEGATIVE_INFINITY && (!a.hasMax || max > a.maxPrice)) {
+            a.maxPrice = max;
+            a.hasMax = true;
+        }
+    }
+}
@@ -0,0 +1,5 @@
+package sd.server;
+
+interface RecordConsumer {
+    void accept(int productCode, int quantity, double price);
+}
@@ -0,0 +1,9 @@
+package sd.server;
+
+interface RequestExecutor {
+    boolean execute(TaskLane lane, Runnable r);
+
+    int queueDepth();
+
+    long rejectedCount();
+}
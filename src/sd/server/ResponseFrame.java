@@ -0,0 +1,48 @@
+package sd.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+final class ResponseFrame extends ByteArrayOutputStream {
+    private DataOutputStream utf;
+
+    ResponseFrame(int requestId, byte status) {
+        super(32);
+        writeInt(requestId);
+        writeByte(status);
+    }
+
+    void writeByte(int v) {
+        write(v);
+    }
+
+    void writeBoolean(boolean v) {
+        write(v ? 1 : 0);
+    }
+
+    void writeInt(int v) {
+        write(v >>> 24);
+        write(v >>> 16);
+        write(v >>> 8);
+        write(v);
+    }
+
+    void writeLong(long v) {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    void writeDouble(double v) {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    void writeUTF(String s) {
+        if (utf == null) utf = new DataOutputStream(this);
+        try {
+            utf.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("String too long for response", e);
+        }
+    }
+}
@@ -1,28 +1,128 @@
 package sd.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
 
 public class SalesServer {
+    private static final int VIRTUAL_TASK_CAPACITY = 64 * 1024;
+
     private final int port;
     private final UserManager userManager;
     private final SalesStore salesStore;
+    private final ServerOptions options;
+
+    private ThreadFactory connectionThreads;
+    private RequestExecutor workerPool;
+    private RequestExecutor streamPool;
 
     public SalesServer(int port, int maxDays, int maxCached, String dataDir) {
+        this(port, maxDays, maxCached, dataDir, new ServerOptions());
+    }
+
+    public SalesServer(int port, int maxDays, int maxCached, String dataDir, ServerOptions options) {
         this.port = port;
+        this.options = options;
         this.userManager = new UserManager(dataDir);
-        this.salesStore = new SalesStore(maxDays, maxCached, dataDir);
+        this.salesStore = new SalesStore(maxDays, maxCached, dataDir, options);
     }
 
     public void start() throws IOException {
+        createExecutors();
+        startStatsReporter();
+        if (options.getIoMode() == ServerOptions.IoMode.NIO) {
+            startNio();
+        } else {
+            startBlocking();
+        }
+    }
+
+    private void createExecutors() {
+        if (options.getThreadMode() == ServerOptions.ThreadMode.VIRTUAL) {
+            ThreadFactory readers = VirtualThreadExecutor.virtualThreadFactory("connection-");
+            ThreadFactory tasks = VirtualThreadExecutor.virtualThreadFactory("request-");
+            if (readers == null || tasks == null) {
+                throw new IllegalStateException("virtual threads are not available on this JVM");
+            }
+            connectionThreads = readers;
+            workerPool = new VirtualThreadExecutor(tasks, VIRTUAL_TASK_CAPACITY);
+            streamPool = workerPool;
+            return;
+        }
+
+        connectionThreads = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r);
+            }
+        };
+        workerPool = newPlatformExecutor("worker-", options.getWorkerThreads());
+        streamPool = newPlatformExecutor("stream-", options.getStreamThreads());
+    }
+
+    private RequestExecutor newPlatformExecutor(String namePrefix, int threads) {
+        if (options.getExecutorKind() == ServerOptions.ExecutorKind.FORKJOIN) {
+            return new ForkJoinExecutor(namePrefix, threads, options.getTaskQueueCapacity());
+        }
+        return new SimpleThreadPool(namePrefix, threads, options.getTaskQueueCapacity());
+    }
+
+    private void startStatsReporter() {
+        final long interval = options.getStatsIntervalMs();
+        if (interval <= 0) return;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lastRejected = 0;
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long rejected = workerPool.rejectedCount();
+                    System.err.println("SalesServer.executor: depth=" + workerPool.queueDepth()
+                            + " rejected=" + rejected + " (+" + (rejected - lastRejected) + ")"
+                            + " background=" + salesStore.backgroundQueueDepth());
+                    System.err.println("SalesServer.cache: " + salesStore.cacheStats());
+                    lastRejected = rejected;
+                }
+            }
+        }, "executor-stats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void startBlocking() throws IOException {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                ClientHandler handler = new ClientHandler(clientSocket, userManager, salesStore);
-                Thread t = new Thread(handler);
+                ClientHandler handler = new ClientHandler(clientSocket, connectionThreads, userManager, salesStore, workerPool, streamPool, options.getMaxInFlight(), options.isOrderedIngest());
+                Thread t = connectionThreads.newThread(handler);
                 t.start();
             }
         }
     }
+
+    private void startNio() throws IOException {
+        NioEventLoop[] loops = new NioEventLoop[options.getEventLoops()];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(i, userManager, salesStore, workerPool, streamPool, options.getMaxInFlight(), options.isOrderedIngest());
+            loops[i].start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
 }
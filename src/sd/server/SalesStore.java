@@ -1,5 +1,6 @@
 package sd.server;
 
+import sd.common.ProtocolConstants;
 import sd.common.SaleEvent;
 
 import java.io.BufferedInputStream;
@@ -11,35 +12,71 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class SalesStore {
-    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int DAY_FILE_MAGIC = 0x53444431;
+    private static final int RECORD_SIZE = 4 + 4 + 8;
+    private static final long MAP_CHUNK_BYTES = 64L * 1024 * 1024;
 
     private final int maxDays;
     private final int totalDays;
-    private final int maxCached;
     private final File baseDir;
 
-    private final Object lock = new Object();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock trackingLock = new ReentrantLock();
+    private final WaiterRegistry waiters;
 
-    private int currentDay;
-    private int dayEpoch;
+    private final int firstDay;
+    private volatile int dayEpoch;
 
-    private DataOutputStream currentDayOut;
+    private final ReentrantLock[] dayLocks;
+    private final int[] dayGeneration;
+    private final boolean[] indexWrites;
 
-    private final Map<Integer, List<SaleEvent>> series;
-    private final Map<Integer, Map<String, DayProductAgg>> dayAggCache;
+    private final GroupCommitLog commitLog;
+    private final BackgroundExecutor background;
 
-    private final Set<String> soldProductsToday;
-    private String lastProductToday;
+    private final ProductDictionary dictionary;
+
+    private final boolean columnarCache;
+    private final DayCache<DaySeries> series;
+    private final DayCache<DayAggIndex> dayIndexes;
+    private final ConcurrentHashMap<Integer, CompletableFuture<DaySeries>> seriesLoads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, CompletableFuture<DayAggIndex>> indexLoads = new ConcurrentHashMap<>();
+    private final AtomicLong fileReads = new AtomicLong();
+
+    private final ForkJoinPool aggregatePool;
+
+    private final ReentrantLock windowsLock = new ReentrantLock();
+    private final LinkedHashMap<Integer, ProductWindow> productWindows;
+
+    private final BitSet soldProductsToday;
+    private int lastProductToday;
     private int currentRun;
-    private String maxRunProduct;
+    private int maxRunProduct;
     private int maxRunLength;
 
     private void logIOException(String where, IOException e) {
@@ -47,42 +84,51 @@ public class SalesStore {
         e.printStackTrace(System.err);
     }
 
-    private static final class DayProductAgg {
-        int quantity;
-        double volume;
-        double maxPrice;
-        boolean hasMax;
-    }
-
-    private interface RecordConsumer {
-        void accept(String productId, int quantity, double price);
+    public SalesStore(int maxDays, int maxCached, String basePath) {
+        this(maxDays, maxCached, basePath, new ServerOptions());
     }
 
-    public SalesStore(int maxDays, int maxCached, String basePath) {
+    public SalesStore(int maxDays, int maxCached, String basePath, ServerOptions options) {
         this.maxDays = maxDays;
         this.totalDays = maxDays + 1;
-        this.maxCached = maxCached;
         this.baseDir = new File(basePath);
         if (!baseDir.exists()) {
             baseDir.mkdirs();
         }
 
-        this.series = new HashMap<>();
-        this.dayAggCache = new HashMap<>();
-
-        this.soldProductsToday = new HashSet<>();
-        this.lastProductToday = null;
+        this.columnarCache = options.getDayCacheLayout() == ServerOptions.DayCacheLayout.COLUMNAR;
+        this.series = new DayCache<>(totalDays, options.getDayCacheBytes(), maxCached);
+        this.dayIndexes = new DayCache<>(totalDays, options.getIndexCacheBytes(), totalDays);
+        this.dayLocks = new ReentrantLock[totalDays];
+        for (int i = 0; i < totalDays; i++) dayLocks[i] = new ReentrantLock();
+        this.dayGeneration = new int[totalDays];
+        this.indexWrites = new boolean[totalDays];
+        final long maxWindows = Math.max(1, options.getWindowCacheBytes() / ProductWindow.estimatedBytes(totalDays));
+        this.productWindows = new LinkedHashMap<Integer, ProductWindow>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ProductWindow> eldest) {
+                return size() > maxWindows;
+            }
+        };
+        this.aggregatePool = (options.getAggregateParallelism() > 1) ? newAggregatePool(options.getAggregateParallelism()) : null;
+        this.background = new BackgroundExecutor(options.getBackgroundThreads(), options.getBackgroundQueueCapacity());
+        this.commitLog = new GroupCommitLog(options.getDurability(), options.getFsyncIntervalMs(), background);
+        this.dictionary = new ProductDictionary(new File(baseDir, "products.bin"),
+                options.getDurability() != ServerOptions.Durability.NONE);
+        this.waiters = new WaiterRegistry(dictionary);
+
+        this.soldProductsToday = new BitSet();
+        this.lastProductToday = -1;
         this.currentRun = 0;
-        this.maxRunProduct = null;
+        this.maxRunProduct = -1;
         this.maxRunLength = 0;
 
-        this.dayEpoch = 0;
-
         int loadedDay = loadState();
-        synchronized (lock) {
-            this.currentDay = loadedDay;
-        }
+        this.firstDay = loadedDay;
+        this.dayEpoch = 0;
 
+        upgradeLegacyDayFiles();
+        getIndexFile(loadedDay).delete();
         ensureDayFileExists(loadedDay);
         rebuildTodayTrackingFromDisk();
         openCurrentDayWriter();
@@ -90,16 +136,26 @@ public class SalesStore {
         saveStateValue(loadedDay);
     }
 
+    int backgroundQueueDepth() {
+        return background.queueDepth();
+    }
+
     public int getCurrentDay() {
-        synchronized (lock) {
-            return currentDay;
-        }
+        return dayForEpoch(dayEpoch);
+    }
+
+    private int dayForEpoch(int epoch) {
+        return (int) ((firstDay + (long) epoch) % totalDays);
     }
 
     private File getDayFile(int day) {
         return new File(baseDir, "day_" + day + ".bin");
     }
 
+    private File getIndexFile(int day) {
+        return new File(baseDir, "day_" + day + ".idx");
+    }
+
     private File getStateFile() {
         return new File(baseDir, "state.bin");
     }
@@ -129,6 +185,10 @@ public class SalesStore {
     }
 
     private void deleteDayFile(int day) {
+        File idx = getIndexFile(day);
+        if (idx.exists()) {
+            idx.delete();
+        }
         File f = getDayFile(day);
         if (f.exists()) {
             f.delete();
@@ -137,50 +197,109 @@ public class SalesStore {
 
     private void ensureDayFileExists(int day) {
         File f = getDayFile(day);
-        if (f.exists()) return;
-        try (FileOutputStream out = new FileOutputStream(f, true)) {
+        if (f.exists() && f.length() > 0) return;
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(f))) {
+            out.writeInt(DAY_FILE_MAGIC);
         } catch (IOException e) {
             logIOException("SalesStore.ensureDayFileExists", e);
         }
     }
 
+    private boolean isDictionaryEncoded(File f) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            return in.readInt() == DAY_FILE_MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void upgradeLegacyDayFiles() {
+        if (dictionary.isLegacyUpgradeDone()) return;
+        boolean upgraded = true;
+        for (int day = 0; day < totalDays; day++) {
+            if (!upgradeLegacyDayFile(day)) upgraded = false;
+        }
+        if (upgraded) dictionary.markLegacyUpgradeDone();
+    }
+
+    private boolean upgradeLegacyDayFile(int day) {
+        File f = getDayFile(day);
+        if (!f.exists() || f.length() == 0 || isDictionaryEncoded(f)) return true;
+
+        File tmp = new File(baseDir, "day_" + day + ".bin.tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(DAY_FILE_MAGIC);
+            readDayRecords(day, new RecordConsumer() {
+                @Override
+                public void accept(int productCode, int quantity, double price) {
+                    try {
+                        out.writeInt(productCode);
+                        out.writeInt(quantity);
+                        out.writeDouble(price);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("I/O error");
+                    }
+                }
+            });
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("SalesStore.upgradeLegacyDayFile: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+
+        if (!f.delete() || !tmp.renameTo(f)) {
+            System.err.println("SalesStore.upgradeLegacyDayFile: could not replace " + f);
+            return false;
+        }
+        return true;
+    }
+
     private void openCurrentDayWriter() {
-        synchronized (lock) {
-            if (currentDayOut != null) return;
-            ensureDayFileExists(currentDay);
+        lock.lock();
+        try {
+            if (commitLog.isOpen()) return;
+            int day = getCurrentDay();
+            ensureDayFileExists(day);
             try {
-                currentDayOut = new DataOutputStream(
-                        new BufferedOutputStream(new FileOutputStream(getDayFile(currentDay), true), WRITE_BUFFER_SIZE)
-                );
+                commitLog.open(getDayFile(day));
             } catch (IOException e) {
                 logIOException("SalesStore.openCurrentDayWriter", e);
-                currentDayOut = null;
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     private void closeCurrentDayWriter() {
-        synchronized (lock) {
-            if (currentDayOut == null) return;
-            try {
-                currentDayOut.flush();
-                currentDayOut.close();
-            } catch (IOException e) {
-                logIOException("SalesStore.closeCurrentDayWriter", e);
-            } finally {
-                currentDayOut = null;
-            }
+        lock.lock();
+        try {
+            commitLog.close();
+        } finally {
+            lock.unlock();
         }
     }
 
     private void readDayRecords(int day, RecordConsumer consumer) {
         File f = getDayFile(day);
         if (!f.exists()) return;
+        fileReads.incrementAndGet();
+
+        if (day != getCurrentDay() && readMappedRecords(f, consumer)) return;
 
         try (BufferedInputStream bin = new BufferedInputStream(new FileInputStream(f))) {
             bin.mark(8192);
             DataInputStream in = new DataInputStream(bin);
 
+            try {
+                if (in.readInt() == DAY_FILE_MAGIC) {
+                    readEncodedRecords(in, consumer);
+                    return;
+                }
+                bin.reset();
+            } catch (EOFException eof) {
+                return;
+            }
+
             boolean oldHeaderDetected = false;
 
             try {
@@ -190,7 +309,7 @@ public class SalesStore {
                 } else {
                     int q = in.readInt();
                     double p = in.readDouble();
-                    consumer.accept(first, q, p);
+                    consumer.accept(dictionary.codeFor(first), q, p);
                 }
             } catch (EOFException eof) {
                 return;
@@ -222,7 +341,8 @@ public class SalesStore {
                     String productId = in.readUTF();
                     int quantity = in.readInt();
                     double price = in.readDouble();
-                    consumer.accept(productId, quantity, price);
+                    if (productId.isEmpty()) continue;
+                    consumer.accept(dictionary.codeFor(productId), quantity, price);
                 } catch (EOFException eof) {
                     break;
                 }
@@ -232,32 +352,67 @@ public class SalesStore {
         }
     }
 
+    private boolean readMappedRecords(File f, RecordConsumer consumer) {
+        boolean mapped = false;
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4) return false;
+
+            ByteBuffer header = ByteBuffer.allocate(4);
+            if (ch.read(header, 0) < 4 || header.getInt(0) != DAY_FILE_MAGIC) return false;
+            mapped = true;
+
+            long end = 4 + (size - 4) / RECORD_SIZE * RECORD_SIZE;
+            for (long pos = 4; pos < end; ) {
+                long len = Math.min(MAP_CHUNK_BYTES, end - pos);
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+                int limit = (int) len;
+                for (int off = 0; off < limit; off += RECORD_SIZE) {
+                    consumer.accept(map.getInt(off), map.getInt(off + 4), map.getDouble(off + 8));
+                }
+                pos += len;
+            }
+            return true;
+        } catch (IOException e) {
+            logIOException("SalesStore.readMappedRecords", e);
+            return mapped;
+        }
+    }
+
+    private void readEncodedRecords(DataInputStream in, RecordConsumer consumer) throws IOException {
+        while (true) {
+            try {
+                int productCode = in.readInt();
+                int quantity = in.readInt();
+                double price = in.readDouble();
+                consumer.accept(productCode, quantity, price);
+            } catch (EOFException eof) {
+                break;
+            }
+        }
+    }
+
     private void rebuildTodayTrackingFromDisk() {
-        final int day;
-        synchronized (lock) {
-            day = currentDay;
+        final int day = getCurrentDay();
+        trackingLock.lock();
+        try {
             soldProductsToday.clear();
-            lastProductToday = null;
+            lastProductToday = -1;
             currentRun = 0;
-            maxRunProduct = null;
+            maxRunProduct = -1;
             maxRunLength = 0;
+        } finally {
+            trackingLock.unlock();
         }
 
         readDayRecords(day, new RecordConsumer() {
             @Override
-            public void accept(String productId, int quantity, double price) {
-                synchronized (lock) {
-                    soldProductsToday.add(productId);
-                    if (productId.equals(lastProductToday)) {
-                        currentRun++;
-                    } else {
-                        lastProductToday = productId;
-                        currentRun = 1;
-                    }
-                    if (currentRun > maxRunLength) {
-                        maxRunLength = currentRun;
-                        maxRunProduct = lastProductToday;
-                    }
+            public void accept(int productCode, int quantity, double price) {
+                trackingLock.lock();
+                try {
+                    trackSaleUnlocked(productCode);
+                } finally {
+                    trackingLock.unlock();
                 }
             }
         });
@@ -272,397 +427,735 @@ public class SalesStore {
     }
 
     public void nextDay() {
-        synchronized (lock) {
+        int oldDay;
+        int newDay;
+        List<Runnable> ready;
+        lock.lock();
+        try {
             closeCurrentDayWriter();
 
-            int oldDay = currentDay;
-            int newDay = (oldDay + 1) % totalDays;
+            oldDay = getCurrentDay();
+            newDay = (oldDay + 1) % totalDays;
 
-            series.remove(newDay);
-            dayAggCache.remove(newDay);
+            ReentrantLock stripe = dayLocks[newDay];
+            stripe.lock();
+            try {
+                dayGeneration[newDay]++;
+                series.remove(newDay);
+                dayIndexes.remove(newDay);
+                seriesLoads.remove(newDay);
+                indexLoads.remove(newDay);
 
-            deleteDayFile(newDay);
-            ensureDayFileExists(newDay);
+                deleteDayFile(newDay);
+                ensureDayFileExists(newDay);
 
-            currentDay = newDay;
-            dayEpoch++;
+                dayEpoch++;
+            } finally {
+                stripe.unlock();
+            }
 
-            soldProductsToday.clear();
-            lastProductToday = null;
-            currentRun = 0;
-            maxRunProduct = null;
-            maxRunLength = 0;
+            trackingLock.lock();
+            try {
+                soldProductsToday.clear();
+                lastProductToday = -1;
+                currentRun = 0;
+                maxRunProduct = -1;
+                maxRunLength = 0;
+
+                waiters.dayClosed();
+                ready = waiters.takeReady();
+            } finally {
+                trackingLock.unlock();
+            }
 
             try {
-                currentDayOut = new DataOutputStream(
-                        new BufferedOutputStream(new FileOutputStream(getDayFile(currentDay), true), WRITE_BUFFER_SIZE)
-                );
+                commitLog.open(getDayFile(newDay));
             } catch (IOException e) {
                 logIOException("SalesStore.nextDay.openWriter", e);
-                currentDayOut = null;
             }
 
-            saveStateValue(currentDay);
+            saveStateValue(newDay);
+        } finally {
+            lock.unlock();
+        }
+        completeWaiters(ready);
 
-            evictIfNeededUnlocked();
+        if (maxDays > 0) prebuildDayIndex(oldDay);
+    }
 
-            lock.notifyAll();
-        }
+    private void prebuildDayIndex(final int day) {
+        background.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                buildDayIndex(day);
+            }
+        });
+    }
+
+    private static byte[] encodeRecord(int productCode, int quantity, double price) {
+        return ByteBuffer.allocate(RECORD_SIZE).putInt(productCode).putInt(quantity).putDouble(price).array();
     }
 
     public void addSale(String productId, int quantity, double price) {
+        try {
+            addSaleAsync(productId, quantity, price).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    public CompletableFuture<Void> addSaleAsync(String productId, int quantity, double price) {
         String pid = (productId == null) ? null : productId.trim();
         if (isInvalidProductId(pid)) throw new IllegalArgumentException("Invalid productId");
         if (quantity <= 0) throw new IllegalArgumentException("Invalid quantity");
         if (isInvalidPrice(price)) throw new IllegalArgumentException("Invalid price");
 
-        synchronized (lock) {
-            if (currentDayOut == null) {
+        final int code = dictionary.codeFor(pid);
+        byte[] record = encodeRecord(code, quantity, price);
+
+        lock.lock();
+        try {
+            if (!commitLog.isOpen()) {
                 openCurrentDayWriter();
             }
 
-            if (currentDayOut == null) {
+            if (!commitLog.isOpen()) {
                 throw new IllegalStateException("I/O error");
             }
 
-            try {
-                currentDayOut.writeUTF(pid);
-                currentDayOut.writeInt(quantity);
-                currentDayOut.writeDouble(price);
-            } catch (IOException e) {
-                logIOException("SalesStore.addSale.write", e);
-                closeCurrentDayWriter();
-                throw new IllegalStateException("I/O error");
+            return commitLog.append(record, new Runnable() {
+                @Override
+                public void run() {
+                    trackWritten(new int[]{code});
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public CompletableFuture<boolean[]> addSalesAsync(String[] productIds, int[] quantities, double[] prices) {
+        int n = productIds.length;
+        final boolean[] accepted = new boolean[n];
+        int[] codes = new int[n];
+
+        int acceptedCount = 0;
+        for (int i = 0; i < n; i++) {
+            String pid = (productIds[i] == null) ? null : productIds[i].trim();
+            if (isInvalidProductId(pid) || quantities[i] <= 0 || isInvalidPrice(prices[i])) continue;
+            codes[i] = dictionary.codeFor(pid);
+            accepted[i] = true;
+            acceptedCount++;
+        }
+
+        if (acceptedCount == 0) return CompletableFuture.completedFuture(accepted);
+
+        ByteBuffer records = ByteBuffer.allocate(acceptedCount * RECORD_SIZE);
+        final int[] writtenCodes = new int[acceptedCount];
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (!accepted[i]) continue;
+            records.putInt(codes[i]).putInt(quantities[i]).putDouble(prices[i]);
+            writtenCodes[k++] = codes[i];
+        }
+
+        CompletableFuture<Void> appended;
+        lock.lock();
+        try {
+            if (!commitLog.isOpen()) {
+                openCurrentDayWriter();
             }
 
-            soldProductsToday.add(pid);
-            if (pid.equals(lastProductToday)) {
-                currentRun++;
-            } else {
-                lastProductToday = pid;
-                currentRun = 1;
+            if (!commitLog.isOpen()) {
+                throw new IllegalStateException("I/O error");
             }
-            if (currentRun > maxRunLength) {
-                maxRunLength = currentRun;
-                maxRunProduct = lastProductToday;
+
+            appended = commitLog.append(records.array(), new Runnable() {
+                @Override
+                public void run() {
+                    trackWritten(writtenCodes);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+
+        return appended.thenApply(new Function<Void, boolean[]>() {
+            @Override
+            public boolean[] apply(Void ignored) {
+                return accepted;
             }
+        });
+    }
 
-            lock.notifyAll();
+    private void trackWritten(int[] productCodes) {
+        List<Runnable> ready;
+        trackingLock.lock();
+        try {
+            for (int code : productCodes) trackSaleUnlocked(code);
+            ready = waiters.takeReady();
+        } finally {
+            trackingLock.unlock();
         }
+        completeWaiters(ready);
     }
 
-    private int distanceFromCurrent(int day) {
-        return (currentDay - day + totalDays) % totalDays;
+    private void completeWaiters(final List<Runnable> ready) {
+        if (ready.isEmpty()) return;
+        Runnable completion = new Runnable() {
+            @Override
+            public void run() {
+                for (Runnable r : ready) r.run();
+            }
+        };
+        background.execute(completion);
     }
 
-    private int chooseEvictionDayUnlocked() {
-        int candidate = -1;
-        int maxDist = -1;
-        for (Integer d : series.keySet()) {
-            int dist = distanceFromCurrent(d);
-            if (dist > maxDist) {
-                maxDist = dist;
-                candidate = d;
+    private void trackSaleUnlocked(int productCode) {
+        if (!soldProductsToday.get(productCode)) {
+            soldProductsToday.set(productCode);
+            waiters.productSold(productCode, soldProductsToday);
+        }
+        if (productCode == lastProductToday) {
+            currentRun++;
+        } else {
+            lastProductToday = productCode;
+            currentRun = 1;
+        }
+        if (currentRun > maxRunLength) {
+            maxRunLength = currentRun;
+            maxRunProduct = lastProductToday;
+            if (maxRunLength >= waiters.lowestRunThreshold()) {
+                waiters.runReached(maxRunLength, dictionary.name(maxRunProduct));
             }
         }
-        return candidate;
     }
 
-    private void evictIfNeededUnlocked() {
-        while (series.size() > maxCached) {
-            int evict = chooseEvictionDayUnlocked();
-            if (evict == -1) break;
-            series.remove(evict);
-            dayAggCache.remove(evict);
+    public String cacheStats() {
+        return "series[" + series.stats() + "] index[" + dayIndexes.stats() + "] fileReads=" + fileReads.get();
+    }
+
+    long fileReads() {
+        return fileReads.get();
+    }
+
+    private <T> T loadOnce(ConcurrentHashMap<Integer, CompletableFuture<T>> loads, int day, Supplier<T> loader) {
+        CompletableFuture<T> mine = new CompletableFuture<>();
+        CompletableFuture<T> inflight = loads.putIfAbsent(day, mine);
+        if (inflight != null) {
+            try {
+                return inflight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
         }
+
+        try {
+            T value = loader.get();
+            mine.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            loads.remove(day, mine);
+        }
+    }
+
+    private long estimateSeriesBytes(int day) {
+        long records = getDayFile(day).length() / RECORD_SIZE;
+        return records * (columnarCache ? ColumnarDaySeries.BYTES_PER_RECORD : ObjectDaySeries.BYTES_PER_RECORD);
     }
 
-    private List<SaleEvent> loadDayFromDisk(final int day) {
-        final List<SaleEvent> list = new ArrayList<>();
+    private DaySeries loadDayFromDisk(final int day) {
+        if (columnarCache) {
+            ColumnarDaySeries.Builder builder = new ColumnarDaySeries.Builder();
+            readDayRecords(day, builder);
+            return builder.build();
+        }
+
+        final ObjectDaySeries list = new ObjectDaySeries();
         readDayRecords(day, new RecordConsumer() {
             @Override
-            public void accept(String productId, int quantity, double price) {
-                list.add(new SaleEvent(productId, quantity, price, day));
+            public void accept(int productCode, int quantity, double price) {
+                list.add(productCode, quantity, price);
             }
         });
         return list;
     }
 
-    private List<SaleEvent> getSeriesMaybeCached(int day) {
+    private DaySeries getSeriesMaybeCached(int day) {
         if (day == getCurrentDay()) return null;
 
-        List<SaleEvent> cached;
-        boolean canLoad;
+        DaySeries cached = series.get(day);
+        if (cached != null) return cached;
+        if (!series.admits(day, estimateSeriesBytes(day))) return null;
+
+        final int target = day;
+        return loadOnce(seriesLoads, day, new Supplier<DaySeries>() {
+            @Override
+            public DaySeries get() {
+                return loadSeries(target);
+            }
+        });
+    }
+
+    private DaySeries loadSeries(int day) {
+        DaySeries cached = series.peek(day);
+        if (cached != null) return cached;
+
+        int generation;
+        ReentrantLock stripe = dayLocks[day];
+        stripe.lock();
+        try {
+            generation = dayGeneration[day];
+        } finally {
+            stripe.unlock();
+        }
+
+        DaySeries loaded = loadDayFromDisk(day);
+
+        stripe.lock();
+        try {
+            if (dayGeneration[day] != generation) return loaded;
+            return series.putIfAbsent(day, loaded, loaded.estimatedBytes());
+        } finally {
+            stripe.unlock();
+        }
+    }
 
-        synchronized (lock) {
-            cached = series.get(day);
+    private DayAggIndex buildDayIndex(final int day) {
+        return loadOnce(indexLoads, day, new Supplier<DayAggIndex>() {
+            @Override
+            public DayAggIndex get() {
+                return loadDayIndex(day);
+            }
+        });
+    }
+
+    private DayAggIndex loadDayIndex(int day) {
+        boolean current;
+        int generation;
+        ReentrantLock stripe = dayLocks[day];
+        stripe.lock();
+        try {
+            current = day == getCurrentDay();
+            generation = dayGeneration[day];
+        } finally {
+            stripe.unlock();
+        }
+
+        if (!current) {
+            DayAggIndex cached = dayIndexes.peek(day);
             if (cached != null) return cached;
-            canLoad = series.size() < maxCached;
         }
 
-        if (!canLoad) return null;
+        DayAggIndex index = null;
+        boolean persist = false;
+        File f = getIndexFile(day);
+        DaySeries cachedSeries = current ? null : series.peek(day);
+        if (cachedSeries != null) {
+            DayAggIndex.Builder builder = new DayAggIndex.Builder();
+            cachedSeries.forEach(builder);
+            index = builder.build();
+            persist = !f.exists();
+        } else if (!current && f.exists()) {
+            try {
+                fileReads.incrementAndGet();
+                index = DayAggIndex.read(f);
+            } catch (IOException e) {
+                logIOException("SalesStore.buildDayIndex.read", e);
+            }
+        }
 
-        List<SaleEvent> loaded = loadDayFromDisk(day);
+        if (index == null) {
+            DayAggIndex.Builder builder = new DayAggIndex.Builder();
+            readDayRecords(day, builder);
+            index = builder.build();
+            persist = true;
+        }
+        if (current) return index;
 
-        synchronized (lock) {
-            List<SaleEvent> again = series.get(day);
+        DayAggIndex published;
+        stripe.lock();
+        try {
+            if (dayGeneration[day] != generation) return index;
+            DayAggIndex again = dayIndexes.peek(day);
             if (again != null) return again;
-            if (series.size() < maxCached) {
-                series.put(day, loaded);
-                evictIfNeededUnlocked();
-            }
+            published = dayIndexes.putIfAbsent(day, index, index.estimatedBytes());
+            persist = persist && published == index && !indexWrites[day] && getDayFile(day).exists();
+            if (persist) indexWrites[day] = true;
+        } finally {
+            stripe.unlock();
         }
 
-        return loaded;
+        if (persist) persistDayIndex(day, generation, index, f);
+        return published;
     }
 
-    private DayProductAgg computeAggFromList(List<SaleEvent> list, String productId) {
-        DayProductAgg a = new DayProductAgg();
-        for (SaleEvent e : list) {
-            if (!productId.equals(e.getProductId())) continue;
-            a.quantity += e.getQuantity();
-            a.volume += e.getQuantity() * e.getPrice();
-            if (!a.hasMax || e.getPrice() > a.maxPrice) {
-                a.maxPrice = e.getPrice();
-                a.hasMax = true;
+    private void persistDayIndex(int day, int generation, DayAggIndex index, File f) {
+        File tmp = new File(f.getPath() + ".tmp");
+        boolean written = false;
+        try {
+            index.write(tmp);
+            written = true;
+        } catch (IOException e) {
+            logIOException("SalesStore.buildDayIndex.write", e);
+        }
+
+        ReentrantLock stripe = dayLocks[day];
+        stripe.lock();
+        try {
+            if (written && dayGeneration[day] == generation) {
+                DayAggIndex.replace(tmp, f);
+            } else {
+                tmp.delete();
             }
+        } catch (IOException e) {
+            logIOException("SalesStore.buildDayIndex.write", e);
+        } finally {
+            indexWrites[day] = false;
+            stripe.unlock();
         }
-        return a;
     }
 
-    private DayProductAgg computeAggFromDisk(final int day, final String productId) {
-        final DayProductAgg a = new DayProductAgg();
-        readDayRecords(day, new RecordConsumer() {
+    private DayProductAgg[] getDayAggs(int day, int[] productCodes) {
+        DayAggIndex index = dayIndexes.get(day);
+        if (index == null) index = buildDayIndex(day);
+        DayProductAgg[] aggs = new DayProductAgg[productCodes.length];
+        for (int i = 0; i < productCodes.length; i++) aggs[i] = index.get(productCodes[i]);
+        return aggs;
+    }
+
+    private static ForkJoinPool newAggregatePool(int parallelism) {
+        return new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
             @Override
-            public void accept(String pid, int quantity, double price) {
-                if (!productId.equals(pid)) return;
-                a.quantity += quantity;
-                a.volume += quantity * price;
-                if (!a.hasMax || price > a.maxPrice) {
-                    a.maxPrice = price;
-                    a.hasMax = true;
-                }
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                t.setName("aggregate-" + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
             }
-        });
-        return a;
+        }, null, false);
     }
 
-    private DayProductAgg getDayAgg(int day, String productId) {
-        Map<String, DayProductAgg> byProduct;
-        DayProductAgg cached;
+    private final class DayAggTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] days;
+        private final int[] productCodes;
+        private final DayProductAgg[][] result;
+        private final int from;
+        private final int to;
+
+        DayAggTask(int[] days, int[] productCodes, DayProductAgg[][] result, int from, int to) {
+            this.days = days;
+            this.productCodes = productCodes;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
 
-        synchronized (lock) {
-            byProduct = dayAggCache.get(day);
-            if (byProduct == null) {
-                byProduct = new HashMap<>();
-                dayAggCache.put(day, byProduct);
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                result[from] = getDayAggs(days[from], productCodes);
+                return;
             }
-            cached = byProduct.get(productId);
-            if (cached != null) return cached;
+            int mid = (from + to) >>> 1;
+            invokeAll(new DayAggTask(days, productCodes, result, from, mid),
+                    new DayAggTask(days, productCodes, result, mid, to));
         }
+    }
 
-        List<SaleEvent> list = getSeriesMaybeCached(day);
-        DayProductAgg computed = (list != null) ? computeAggFromList(list, productId) : computeAggFromDisk(day, productId);
+    private DayProductAgg[][] fetchDayAggs(int[] days, int[] productCodes) {
+        DayProductAgg[][] result = new DayProductAgg[days.length][];
+        if (aggregatePool == null || days.length < 2) {
+            for (int i = 0; i < days.length; i++) result[i] = getDayAggs(days[i], productCodes);
+            return result;
+        }
+        aggregatePool.invoke(new DayAggTask(days, productCodes, result, 0, days.length));
+        return result;
+    }
 
-        synchronized (lock) {
-            Map<String, DayProductAgg> again = dayAggCache.get(day);
-            if (again == null) {
-                again = new HashMap<>();
-                dayAggCache.put(day, again);
+    private ProductWindow windowFor(int productCode) {
+        windowsLock.lock();
+        try {
+            ProductWindow w = productWindows.get(productCode);
+            if (w == null) {
+                w = new ProductWindow(totalDays);
+                productWindows.put(productCode, w);
             }
-            DayProductAgg existing = again.get(productId);
-            if (existing != null) return existing;
-            again.put(productId, computed);
-            return computed;
+            return w;
+        } finally {
+            windowsLock.unlock();
         }
     }
 
-    public double aggregateQuantity(String productId, int lastDays) {
+    private DayProductAgg aggregateWindow(String productId, int lastDays) {
         if (lastDays > maxDays) lastDays = maxDays;
-        if (lastDays <= 0) return 0.0;
+        if (lastDays <= 0) return null;
 
         String pid = (productId == null) ? null : productId.trim();
-        if (isInvalidProductId(pid)) return 0.0;
+        if (isInvalidProductId(pid)) return null;
+        int code = dictionary.lookup(pid);
+        if (code < 0) return null;
 
-        int startDay;
-        synchronized (lock) {
-            startDay = currentDay;
-        }
+        return aggregateWindows(new int[]{code}, lastDays)[0];
+    }
 
-        int day = startDay;
-        int total = 0;
+    private DayProductAgg[] aggregateWindows(int[] productCodes, int lastDays) {
+        int epoch = dayEpoch;
+        int startDay = dayForEpoch(epoch);
 
-        for (int i = 0; i < lastDays; i++) {
-            day = (day - 1 + totalDays) % totalDays;
-            DayProductAgg a = getDayAgg(day, pid);
-            total += a.quantity;
-        }
+        ProductWindow[] windows = new ProductWindow[productCodes.length];
+        for (int i = 0; i < productCodes.length; i++) windows[i] = windowFor(productCodes[i]);
 
-        return total;
+        int locked = 0;
+        try {
+            for (; locked < windows.length; locked++) windows[locked].lock.lock();
+            syncWindows(productCodes, windows, epoch, startDay);
+            DayProductAgg[] result = new DayProductAgg[windows.length];
+            for (int i = 0; i < windows.length; i++) result[i] = windows[i].query(startDay, lastDays);
+            return result;
+        } finally {
+            for (int i = 0; i < locked; i++) windows[i].lock.unlock();
+        }
     }
 
-    public double aggregateVolume(String productId, int lastDays) {
-        if (lastDays > maxDays) lastDays = maxDays;
-        if (lastDays <= 0) return 0.0;
-
-        String pid = (productId == null) ? null : productId.trim();
-        if (isInvalidProductId(pid)) return 0.0;
-
-        int startDay;
-        synchronized (lock) {
-            startDay = currentDay;
+    private void syncWindows(int[] productCodes, ProductWindow[] windows, int epoch, int startDay) {
+        int[] staleCodes = new int[windows.length];
+        ProductWindow[] staleWindows = new ProductWindow[windows.length];
+        int[] staleMissing = new int[windows.length];
+        int stale = 0;
+        int missing = 0;
+        for (int i = 0; i < windows.length; i++) {
+            ProductWindow w = windows[i];
+            if (epoch <= w.syncedEpoch) continue;
+            int m = (w.syncedEpoch < 0) ? maxDays : Math.min(maxDays, epoch - w.syncedEpoch);
+            staleCodes[stale] = productCodes[i];
+            staleWindows[stale] = w;
+            staleMissing[stale] = m;
+            stale++;
+            missing = Math.max(missing, m);
         }
+        if (stale == 0) return;
 
+        int[] days = new int[missing];
         int day = startDay;
-        double total = 0.0;
-
-        for (int i = 0; i < lastDays; i++) {
+        for (int i = 0; i < missing; i++) {
             day = (day - 1 + totalDays) % totalDays;
-            DayProductAgg a = getDayAgg(day, pid);
-            total += a.volume;
+            days[i] = day;
         }
 
-        return total;
+        DayProductAgg[][] aggs = fetchDayAggs(days, Arrays.copyOf(staleCodes, stale));
+        for (int i = 0; i < missing; i++) {
+            for (int j = 0; j < stale; j++) {
+                if (i < staleMissing[j]) staleWindows[j].set(days[i], aggs[i][j]);
+            }
+        }
+        for (int j = 0; j < stale; j++) staleWindows[j].syncedEpoch = epoch;
     }
 
-    public double aggregateAveragePrice(String productId, int lastDays) {
+    public double[][] aggregateMany(List<String> productIds, byte[] aggTypes, int lastDays) {
+        double[][] result = new double[productIds.size()][aggTypes.length];
         if (lastDays > maxDays) lastDays = maxDays;
-        if (lastDays <= 0) return 0.0;
+        if (lastDays <= 0) return result;
 
-        String pid = (productId == null) ? null : productId.trim();
-        if (isInvalidProductId(pid)) return 0.0;
+        int[] codes = new int[productIds.size()];
+        for (int i = 0; i < codes.length; i++) {
+            String pid = productIds.get(i);
+            pid = (pid == null) ? null : pid.trim();
+            codes[i] = isInvalidProductId(pid) ? -1 : dictionary.lookup(pid);
+        }
 
-        int startDay;
-        synchronized (lock) {
-            startDay = currentDay;
+        int[] distinct = distinctCodes(codes);
+        DayProductAgg[] aggs = aggregateWindows(distinct, lastDays);
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] < 0) continue;
+            DayProductAgg a = aggs[Arrays.binarySearch(distinct, codes[i])];
+            for (int j = 0; j < aggTypes.length; j++) result[i][j] = metric(a, aggTypes[j]);
         }
+        return result;
+    }
 
-        int day = startDay;
-        double totalVolume = 0.0;
-        int totalQuantity = 0;
+    private static int[] distinctCodes(int[] codes) {
+        int[] sorted = codes.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int c : sorted) {
+            if (c >= 0 && (n == 0 || sorted[n - 1] != c)) sorted[n++] = c;
+        }
+        return Arrays.copyOf(sorted, n);
+    }
 
-        for (int i = 0; i < lastDays; i++) {
-            day = (day - 1 + totalDays) % totalDays;
-            DayProductAgg a = getDayAgg(day, pid);
-            totalVolume += a.volume;
-            totalQuantity += a.quantity;
+    private static double metric(DayProductAgg a, byte aggType) {
+        if (a == null) return 0.0;
+        switch (aggType) {
+            case ProtocolConstants.AGG_QUANTITY:
+                return a.quantity;
+            case ProtocolConstants.AGG_VOLUME:
+                return a.volume;
+            case ProtocolConstants.AGG_AVG_PRICE:
+                return (a.quantity == 0) ? 0.0 : a.volume / a.quantity;
+            case ProtocolConstants.AGG_MAX_PRICE:
+                return a.hasMax ? a.maxPrice : 0.0;
+            default:
+                throw new IllegalArgumentException("Unknown aggregation type " + aggType);
         }
+    }
 
-        if (totalQuantity == 0) return 0.0;
-        return totalVolume / totalQuantity;
+    public double aggregateQuantity(String productId, int lastDays) {
+        return metric(aggregateWindow(productId, lastDays), ProtocolConstants.AGG_QUANTITY);
     }
 
-    public double aggregateMaxPrice(String productId, int lastDays) {
-        if (lastDays > maxDays) lastDays = maxDays;
-        if (lastDays <= 0) return 0.0;
+    public double aggregateVolume(String productId, int lastDays) {
+        return metric(aggregateWindow(productId, lastDays), ProtocolConstants.AGG_VOLUME);
+    }
 
-        String pid = (productId == null) ? null : productId.trim();
-        if (isInvalidProductId(pid)) return 0.0;
+    public double aggregateAveragePrice(String productId, int lastDays) {
+        return metric(aggregateWindow(productId, lastDays), ProtocolConstants.AGG_AVG_PRICE);
+    }
 
-        int startDay;
-        synchronized (lock) {
-            startDay = currentDay;
-        }
+    public double aggregateMaxPrice(String productId, int lastDays) {
+        return metric(aggregateWindow(productId, lastDays), ProtocolConstants.AGG_MAX_PRICE);
+    }
 
-        int day = startDay;
-        double max = 0.0;
+    private int dayAgo(int daysAgo) {
+        if (daysAgo < 1 || daysAgo > maxDays) return -1;
+        return (getCurrentDay() - daysAgo + totalDays) % totalDays;
+    }
 
-        for (int i = 0; i < lastDays; i++) {
-            day = (day - 1 + totalDays) % totalDays;
-            DayProductAgg a = getDayAgg(day, pid);
-            if (a.hasMax && a.maxPrice > max) {
-                max = a.maxPrice;
-            }
+    private BitSet productSet(List<String> productIds) {
+        BitSet productSet = new BitSet();
+        if (productIds == null) return productSet;
+        for (String p : productIds) {
+            if (p == null) continue;
+            String t = p.trim();
+            if (t.isEmpty()) continue;
+            int code = dictionary.lookup(t);
+            if (code >= 0) productSet.set(code);
         }
-
-        return max;
+        return productSet;
     }
 
-    private List<SaleEvent> filterEventsFromDisk(final int day, final Set<String> productSet) {
-        final List<SaleEvent> result = new ArrayList<>();
+    private void scanDay(int day, final BitSet productSet, final RecordConsumer consumer) {
+        DaySeries cached = getSeriesMaybeCached(day);
+        if (cached != null) {
+            cached.scan(productSet, consumer);
+            return;
+        }
         readDayRecords(day, new RecordConsumer() {
             @Override
-            public void accept(String productId, int quantity, double price) {
-                if (productSet.contains(productId)) {
-                    result.add(new SaleEvent(productId, quantity, price, day));
-                }
+            public void accept(int productCode, int quantity, double price) {
+                if (productSet.get(productCode)) consumer.accept(productCode, quantity, price);
             }
         });
-        return result;
     }
 
     public List<SaleEvent> filterEvents(int daysAgo, List<String> productIds) {
-        if (daysAgo < 1 || daysAgo > maxDays) {
-            return new ArrayList<>();
-        }
-        if (productIds == null) {
-            return new ArrayList<>();
-        }
+        final List<SaleEvent> result = new ArrayList<>();
+        final int day = dayAgo(daysAgo);
+        if (day < 0) return result;
+        BitSet productSet = productSet(productIds);
+        if (productSet.isEmpty()) return result;
 
-        int startDay;
-        synchronized (lock) {
-            startDay = currentDay;
-        }
+        scanDay(day, productSet, new RecordConsumer() {
+            @Override
+            public void accept(int productCode, int quantity, double price) {
+                result.add(new SaleEvent(dictionary.name(productCode), quantity, price, day));
+            }
+        });
+        return result;
+    }
 
-        int day = (startDay - daysAgo + totalDays) % totalDays;
+    void scanEvents(int daysAgo, List<String> productIds, RecordConsumer consumer) {
+        int day = dayAgo(daysAgo);
+        if (day < 0) return;
+        BitSet productSet = productSet(productIds);
+        if (productSet.isEmpty()) return;
+        scanDay(day, productSet, consumer);
+    }
 
-        Set<String> productSet = new HashSet<>();
-        for (String p : productIds) {
-            if (p == null) continue;
-            String t = p.trim();
-            if (!t.isEmpty()) productSet.add(t);
-        }
-        if (productSet.isEmpty()) {
-            return new ArrayList<>();
-        }
+    String productName(int productCode) {
+        return dictionary.name(productCode);
+    }
+
+    public CompletableFuture<Boolean> awaitSimultaneous(String p1, String p2) {
+        final String a = (p1 == null) ? null : p1.trim();
+        final String b = (p2 == null) ? null : p2.trim();
+        if (isInvalidProductId(a) || isInvalidProductId(b)) throw new IllegalArgumentException("Invalid productId");
 
-        List<SaleEvent> cached;
-        synchronized (lock) {
-            cached = series.get(day);
+        final CompletableFuture<Boolean> result;
+        trackingLock.lock();
+        try {
+            result = waiters.awaitSimultaneous(a, b, soldProductsToday);
+        } finally {
+            trackingLock.unlock();
         }
 
-        if (cached != null) {
-            List<SaleEvent> result = new ArrayList<>();
-            for (SaleEvent e : cached) {
-                if (productSet.contains(e.getProductId())) {
-                    result.add(e);
+        result.whenComplete(new BiConsumer<Boolean, Throwable>() {
+            @Override
+            public void accept(Boolean value, Throwable failure) {
+                if (!(failure instanceof CancellationException)) return;
+                trackingLock.lock();
+                try {
+                    waiters.removeSimultaneous(a, b, result);
+                } finally {
+                    trackingLock.unlock();
                 }
             }
-            return result;
-        }
-
-        return filterEventsFromDisk(day, productSet);
+        });
+        return result;
     }
 
-    public boolean waitForSimultaneous(String p1, String p2) throws InterruptedException {
-        String a = (p1 == null) ? null : p1.trim();
-        String b = (p2 == null) ? null : p2.trim();
-        if (isInvalidProductId(a) || isInvalidProductId(b)) throw new IllegalArgumentException("Invalid productId");
+    public CompletableFuture<String> awaitConsecutive(final int count) {
+        if (count <= 0) throw new IllegalArgumentException("Invalid count");
 
-        synchronized (lock) {
-            int epoch = dayEpoch;
-            while (true) {
-                if (dayEpoch != epoch) return false;
-                if (soldProductsToday.contains(a) && soldProductsToday.contains(b)) {
-                    return true;
-                }
-                lock.wait();
+        final CompletableFuture<String> result;
+        trackingLock.lock();
+        try {
+            if (maxRunLength >= count) {
+                return CompletableFuture.completedFuture(dictionary.name(maxRunProduct));
             }
+            result = waiters.awaitConsecutive(count);
+        } finally {
+            trackingLock.unlock();
         }
+
+        result.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String value, Throwable failure) {
+                if (!(failure instanceof CancellationException)) return;
+                trackingLock.lock();
+                try {
+                    waiters.removeConsecutive(count, result);
+                } finally {
+                    trackingLock.unlock();
+                }
+            }
+        });
+        return result;
+    }
+
+    public boolean waitForSimultaneous(String p1, String p2) throws InterruptedException {
+        return awaitBlocking(awaitSimultaneous(p1, p2));
     }
 
     public String waitForConsecutive(int count) throws InterruptedException {
-        if (count <= 0) throw new IllegalArgumentException("Invalid count");
+        return awaitBlocking(awaitConsecutive(count));
+    }
 
-        synchronized (lock) {
-            int epoch = dayEpoch;
-            while (true) {
-                if (dayEpoch != epoch) return null;
-                if (maxRunLength >= count) {
-                    return maxRunProduct;
-                }
-                lock.wait();
-            }
+    private static <T> T awaitBlocking(CompletableFuture<T> result) throws InterruptedException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(false);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Wait failed", e.getCause());
         }
     }
 }
@@ -1,5 +1,8 @@
 package sd.server;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class ServerMain {
 
     public static void main(String[] args) {
@@ -8,27 +11,45 @@ public class ServerMain {
         int S = 3;
         String dataDir = "data";
 
+        ServerOptions options = new ServerOptions();
+
         if (args != null && args.length > 0) {
             if (args.length == 1 && ("--help".equals(args[0]) || "-h".equals(args[0]))) {
                 printUsage(0);
                 return;
             }
 
-            if (args.length != 4) {
+            List<String> positional = new ArrayList<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    positional.add(arg);
+                    continue;
+                }
+                String optErr = options.apply(arg);
+                if (optErr != null) {
+                    System.err.println("Invalid option: " + optErr);
+                    printUsage(2);
+                    return;
+                }
+            }
+
+            if (!positional.isEmpty() && positional.size() != 4) {
                 System.err.println("Invalid arguments.");
                 printUsage(2);
                 return;
             }
 
-            try {
-                port = Integer.parseInt(args[0]);
-                D = Integer.parseInt(args[1]);
-                S = Integer.parseInt(args[2]);
-                dataDir = args[3];
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid number format in arguments.");
-                printUsage(2);
-                return;
+            if (!positional.isEmpty()) {
+                try {
+                    port = Integer.parseInt(positional.get(0));
+                    D = Integer.parseInt(positional.get(1));
+                    S = Integer.parseInt(positional.get(2));
+                    dataDir = positional.get(3);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid number format in arguments.");
+                    printUsage(2);
+                    return;
+                }
             }
         }
 
@@ -39,7 +60,7 @@ public class ServerMain {
             return;
         }
 
-        SalesServer server = new SalesServer(port, D, S, dataDir);
+        SalesServer server = new SalesServer(port, D, S, dataDir, options);
         try {
             server.start();
         } catch (Exception e) {
@@ -58,7 +79,10 @@ public class ServerMain {
     }
 
     private static void printUsage(int code) {
-        String msg = "Usage: java sd.server.ServerMain [port D S dataDir]  (or --help)";
+        String msg = "Usage: java sd.server.ServerMain [port D S dataDir] [--io=blocking|nio] [--event-loops=N] [--threads=platform|virtual]\n       [--durability=none|batch|interval] [--fsync-interval-ms=N]\n       [--day-cache=objects|columnar] [--max-in-flight=N]\n       [--executor=simple|forkjoin] [--workers=N] [--task-queue=N] [--stats-interval-ms=N]\n       [--stream-threads=N] [--background-threads=N] [--background-queue=N]\n       [--ingest-order=connection|any]\n       [--day-cache-mb=N] [--index-cache-mb=N] [--window-cache-mb=N]\n       [--aggregate-parallelism=N]  (or --help)\n\n"
+                + "  --io=blocking runs a reader and a writer thread per connection: two platform threads each,\n"
+                + "  or two virtual threads with --threads=virtual. --io=nio multiplexes connections on the event loops.\n"
+                + "  --threads=virtual needs Java 21 or later; the server refuses to start without it.";
         if (code == 0) System.out.println(msg);
         else System.err.println(msg);
         System.exit(code);
@@ -0,0 +1,319 @@
+package sd.server;
+
+public class ServerOptions {
+    public enum IoMode {
+        BLOCKING,
+        NIO
+    }
+
+    public enum ThreadMode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    public enum Durability {
+        NONE,
+        BATCH,
+        INTERVAL
+    }
+
+    public enum DayCacheLayout {
+        OBJECTS,
+        COLUMNAR
+    }
+
+    public enum ExecutorKind {
+        SIMPLE,
+        FORKJOIN
+    }
+
+    private IoMode ioMode;
+    private ThreadMode threadMode;
+    private int eventLoops;
+    private Durability durability;
+    private long fsyncIntervalMs;
+    private DayCacheLayout dayCacheLayout;
+    private int maxInFlight;
+    private ExecutorKind executorKind;
+    private int workerThreads;
+    private int taskQueueCapacity;
+    private int streamThreads;
+    private int backgroundThreads;
+    private int backgroundQueueCapacity;
+    private long statsIntervalMs;
+    private boolean orderedIngest;
+    private long dayCacheBytes;
+    private long indexCacheBytes;
+    private long windowCacheBytes;
+    private int aggregateParallelism;
+
+    public ServerOptions() {
+        this.ioMode = IoMode.BLOCKING;
+        this.threadMode = ThreadMode.PLATFORM;
+        this.eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.durability = Durability.NONE;
+        this.fsyncIntervalMs = 100;
+        this.dayCacheLayout = DayCacheLayout.OBJECTS;
+        this.maxInFlight = 64;
+        this.executorKind = ExecutorKind.FORKJOIN;
+        this.workerThreads = Math.max(8, Runtime.getRuntime().availableProcessors());
+        this.taskQueueCapacity = 4096;
+        this.streamThreads = 4;
+        this.backgroundThreads = 2;
+        this.backgroundQueueCapacity = 4096;
+        this.statsIntervalMs = 0;
+        this.orderedIngest = true;
+        this.dayCacheBytes = 256L * 1024 * 1024;
+        this.indexCacheBytes = 64L * 1024 * 1024;
+        this.windowCacheBytes = 128L * 1024 * 1024;
+        this.aggregateParallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public void setThreadMode(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = eventLoops;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public long getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    public void setFsyncIntervalMs(long fsyncIntervalMs) {
+        this.fsyncIntervalMs = fsyncIntervalMs;
+    }
+
+    public DayCacheLayout getDayCacheLayout() {
+        return dayCacheLayout;
+    }
+
+    public void setDayCacheLayout(DayCacheLayout dayCacheLayout) {
+        this.dayCacheLayout = dayCacheLayout;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public ExecutorKind getExecutorKind() {
+        return executorKind;
+    }
+
+    public void setExecutorKind(ExecutorKind executorKind) {
+        this.executorKind = executorKind;
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = workerThreads;
+    }
+
+    public int getTaskQueueCapacity() {
+        return taskQueueCapacity;
+    }
+
+    public void setTaskQueueCapacity(int taskQueueCapacity) {
+        this.taskQueueCapacity = taskQueueCapacity;
+    }
+
+    public int getStreamThreads() {
+        return streamThreads;
+    }
+
+    public void setStreamThreads(int streamThreads) {
+        this.streamThreads = streamThreads;
+    }
+
+    public int getBackgroundThreads() {
+        return backgroundThreads;
+    }
+
+    public void setBackgroundThreads(int backgroundThreads) {
+        this.backgroundThreads = backgroundThreads;
+    }
+
+    public int getBackgroundQueueCapacity() {
+        return backgroundQueueCapacity;
+    }
+
+    public void setBackgroundQueueCapacity(int backgroundQueueCapacity) {
+        this.backgroundQueueCapacity = backgroundQueueCapacity;
+    }
+
+    public long getStatsIntervalMs() {
+        return statsIntervalMs;
+    }
+
+    public void setStatsIntervalMs(long statsIntervalMs) {
+        this.statsIntervalMs = statsIntervalMs;
+    }
+
+    public boolean isOrderedIngest() {
+        return orderedIngest;
+    }
+
+    public void setOrderedIngest(boolean orderedIngest) {
+        this.orderedIngest = orderedIngest;
+    }
+
+    public long getDayCacheBytes() {
+        return dayCacheBytes;
+    }
+
+    public void setDayCacheBytes(long dayCacheBytes) {
+        this.dayCacheBytes = dayCacheBytes;
+    }
+
+    public long getIndexCacheBytes() {
+        return indexCacheBytes;
+    }
+
+    public void setIndexCacheBytes(long indexCacheBytes) {
+        this.indexCacheBytes = indexCacheBytes;
+    }
+
+    public long getWindowCacheBytes() {
+        return windowCacheBytes;
+    }
+
+    public void setWindowCacheBytes(long windowCacheBytes) {
+        this.windowCacheBytes = windowCacheBytes;
+    }
+
+    public int getAggregateParallelism() {
+        return aggregateParallelism;
+    }
+
+    public void setAggregateParallelism(int aggregateParallelism) {
+        this.aggregateParallelism = aggregateParallelism;
+    }
+
+    public String apply(String option) {
+        int eq = option.indexOf('=');
+        if (!option.startsWith("--") || eq < 0) return "malformed option " + option;
+        String key = option.substring(2, eq);
+        String value = option.substring(eq + 1).trim();
+
+        try {
+            if ("io".equals(key)) {
+                if ("blocking".equals(value)) ioMode = IoMode.BLOCKING;
+                else if ("nio".equals(value)) ioMode = IoMode.NIO;
+                else return "io must be blocking or nio";
+            } else if ("threads".equals(key)) {
+                if ("platform".equals(value)) threadMode = ThreadMode.PLATFORM;
+                else if (!"virtual".equals(value)) return "threads must be platform or virtual";
+                else if (!VirtualThreadExecutor.isSupported()) return "threads=virtual needs a JVM with virtual threads (Java 21+)";
+                else threadMode = ThreadMode.VIRTUAL;
+            } else if ("event-loops".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "event-loops must be >= 1";
+                eventLoops = n;
+            } else if ("durability".equals(key)) {
+                if ("none".equals(value)) durability = Durability.NONE;
+                else if ("batch".equals(value)) durability = Durability.BATCH;
+                else if ("interval".equals(value)) durability = Durability.INTERVAL;
+                else return "durability must be none, batch or interval";
+            } else if ("fsync-interval-ms".equals(key)) {
+                long n = Long.parseLong(value);
+                if (n < 1) return "fsync-interval-ms must be >= 1";
+                fsyncIntervalMs = n;
+            } else if ("day-cache".equals(key)) {
+                if ("objects".equals(value)) dayCacheLayout = DayCacheLayout.OBJECTS;
+                else if ("columnar".equals(value)) dayCacheLayout = DayCacheLayout.COLUMNAR;
+                else return "day-cache must be objects or columnar";
+            } else if ("max-in-flight".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "max-in-flight must be >= 1";
+                maxInFlight = n;
+            } else if ("executor".equals(key)) {
+                if ("simple".equals(value)) executorKind = ExecutorKind.SIMPLE;
+                else if ("forkjoin".equals(value)) executorKind = ExecutorKind.FORKJOIN;
+                else return "executor must be simple or forkjoin";
+            } else if ("workers".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "workers must be >= 1";
+                workerThreads = n;
+            } else if ("task-queue".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "task-queue must be >= 1";
+                taskQueueCapacity = n;
+            } else if ("stream-threads".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "stream-threads must be >= 1";
+                streamThreads = n;
+            } else if ("background-threads".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "background-threads must be >= 1";
+                backgroundThreads = n;
+            } else if ("background-queue".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "background-queue must be >= 1";
+                backgroundQueueCapacity = n;
+            } else if ("stats-interval-ms".equals(key)) {
+                long n = Long.parseLong(value);
+                if (n < 0) return "stats-interval-ms must be >= 0";
+                statsIntervalMs = n;
+            } else if ("ingest-order".equals(key)) {
+                if ("connection".equals(value)) orderedIngest = true;
+                else if ("any".equals(value)) orderedIngest = false;
+                else return "ingest-order must be connection or any";
+            } else if ("day-cache-mb".equals(key)) {
+                long mb = Long.parseLong(value);
+                if (mb < 0) return "day-cache-mb must be >= 0";
+                dayCacheBytes = Math.multiplyExact(mb, 1024L * 1024);
+            } else if ("index-cache-mb".equals(key)) {
+                long mb = Long.parseLong(value);
+                if (mb < 0) return "index-cache-mb must be >= 0";
+                indexCacheBytes = Math.multiplyExact(mb, 1024L * 1024);
+            } else if ("window-cache-mb".equals(key)) {
+                long mb = Long.parseLong(value);
+                if (mb < 1) return "window-cache-mb must be >= 1";
+                windowCacheBytes = Math.multiplyExact(mb, 1024L * 1024);
+            } else if ("aggregate-parallelism".equals(key)) {
+                int n = Integer.parseInt(value);
+                if (n < 1) return "aggregate-parallelism must be >= 1";
+                aggregateParallelism = n;
+            } else {
+                return "unknown option --" + key;
+            }
+        } catch (NumberFormatException e) {
+            return "invalid number for --" + key;
+        } catch (ArithmeticException e) {
+            return "value too large for --" + key;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+package sd.server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class SimpleThreadPool implements RequestExecutor {
+    private final int capacity;
+    private final ArrayDeque<TaskLane> ready;
+    private final Thread[] workers;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+
+    SimpleThreadPool(int nThreads, int capacity) {
+        this("worker-", nThreads, capacity);
+    }
+
+    SimpleThreadPool(String namePrefix, int nThreads, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.ready = new ArrayDeque<>();
+        this.workers = new Thread[nThreads];
+        for (int i = 0; i < nThreads; i++) {
+            workers[i] = new Thread(new Worker(), namePrefix + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    @Override
+    public boolean execute(TaskLane lane, Runnable r) {
+        if (queued.incrementAndGet() > capacity) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (lane.add(r)) schedule(lane);
+        return true;
+    }
+
+    @Override
+    public int queueDepth() {
+        return queued.get();
+    }
+
+    @Override
+    public long rejectedCount() {
+        return rejected.get();
+    }
+
+    private void schedule(TaskLane lane) {
+        synchronized (ready) {
+            ready.addLast(lane);
+            ready.notify();
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                TaskLane lane;
+                synchronized (ready) {
+                    while (ready.isEmpty()) {
+                        try {
+                            ready.wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    lane = ready.removeFirst();
+                }
+                Runnable r = lane.poll();
+                queued.decrementAndGet();
+                if (!lane.ordered && lane.release()) schedule(lane);
+                try {
+                    r.run();
+                } catch (Throwable t) {
+                    System.err.println("ClientHandler.worker: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                }
+                if (lane.ordered && lane.release()) schedule(lane);
+            }
+        }
+    }
+}
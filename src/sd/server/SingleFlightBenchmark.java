@@ -0,0 +1,104 @@
+package sd.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class SingleFlightBenchmark {
+    private static final int PRODUCTS = 2_000;
+    private static final int SALES_PER_DAY = 500_000;
+    private static final int DAYS = 3;
+
+    private interface Request {
+        void run(int thread);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+
+        File dir = Files.createTempDirectory("sales-single-flight").toFile();
+        try {
+            ServerOptions options = new ServerOptions();
+            options.setIndexCacheBytes(0);
+            final SalesStore store = new SalesStore(10, 4, dir.getPath(), options);
+            prefill(store);
+            for (int d = 0; d < 11; d++) new File(dir, "day_" + d + ".idx").delete();
+
+            System.out.println("Single-flight benchmark: " + threads + " concurrent requests per burst, "
+                    + SALES_PER_DAY + " sales per day");
+            burst("filterEvents (cold series)", store, threads, new Request() {
+                @Override
+                public void run(int thread) {
+                    store.filterEvents(2, Collections.singletonList("P1"));
+                }
+            });
+            burst("aggregate (cold day index)", store, threads, new Request() {
+                @Override
+                public void run(int thread) {
+                    store.aggregateQuantity("P" + thread, 1);
+                }
+            });
+        } finally {
+            deleteRecursively(dir);
+        }
+        System.exit(0);
+    }
+
+    private static void prefill(SalesStore store) {
+        String[] ids = new String[SALES_PER_DAY];
+        int[] quantities = new int[SALES_PER_DAY];
+        double[] prices = new double[SALES_PER_DAY];
+        Arrays.fill(quantities, 1);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int d = 0; d < DAYS; d++) {
+            for (int i = 0; i < SALES_PER_DAY; i++) {
+                ids[i] = "P" + rnd.nextInt(PRODUCTS);
+                prices[i] = 1 + rnd.nextInt(1000) / 10.0;
+            }
+            store.addSalesAsync(ids, quantities, prices).join();
+            store.nextDay();
+        }
+    }
+
+    private static void burst(String name, final SalesStore store, int threads, final Request request)
+            throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int tid = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    request.run(tid);
+                }
+            }, "bench-burst-" + t);
+            workers[t].start();
+        }
+
+        long readsBefore = store.fileReads();
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (Thread t : workers) t.join();
+        long nanos = System.nanoTime() - t0;
+
+        System.out.println(String.format("%-28s requests=%-4d fileReads=%-3d timeMs=%8.1f",
+                name, threads, store.fileReads() - readsBefore, nanos / 1_000_000.0));
+    }
+
+    private static void deleteRecursively(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        if (!f.delete()) throw new IOException("Could not delete " + f);
+    }
+}
@@ -0,0 +1,122 @@
+package sd.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class StoreContentionBenchmark {
+    private static final int PRODUCTS = 2_000;
+    private static final int SALES_PER_DAY = 200_000;
+
+    private static volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        int writers = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int readers = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        int days = (args.length > 3) ? Integer.parseInt(args[3]) : 30;
+
+        File dir = Files.createTempDirectory("sales-contention").toFile();
+        try {
+            SalesStore store = new SalesStore(days, 4, dir.getPath());
+            prefill(store, days);
+
+            System.out.println("Store contention benchmark: " + writers + " writers, " + readers + " readers, "
+                    + days + " past days, " + seconds + "s per phase");
+            runPhase(store, writers, 0, seconds, days);
+            runPhase(store, writers, readers, seconds, days);
+        } finally {
+            deleteRecursively(dir);
+        }
+        System.exit(0);
+    }
+
+    private static void prefill(SalesStore store, int days) {
+        String[] ids = new String[SALES_PER_DAY];
+        int[] quantities = new int[SALES_PER_DAY];
+        double[] prices = new double[SALES_PER_DAY];
+        Arrays.fill(quantities, 1);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        for (int d = 0; d < days; d++) {
+            for (int i = 0; i < SALES_PER_DAY; i++) {
+                ids[i] = "P" + rnd.nextInt(PRODUCTS);
+                prices[i] = 1 + rnd.nextInt(1000) / 10.0;
+            }
+            store.addSalesAsync(ids, quantities, prices).join();
+            store.nextDay();
+        }
+    }
+
+    private static void runPhase(final SalesStore store, int writers, int readers, int seconds, final int days)
+            throws InterruptedException {
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        Thread[] threads = new Thread[writers + readers];
+
+        running = true;
+        for (int i = 0; i < writers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    long n = 0;
+                    while (running) {
+                        store.addSale("P" + rnd.nextInt(PRODUCTS), 1, 2.5);
+                        n++;
+                    }
+                    writes.addAndGet(n);
+                }
+            }, "bench-writer-" + i);
+        }
+        for (int i = 0; i < readers; i++) {
+            threads[writers + i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    long n = 0;
+                    double sink = 0;
+                    while (running) {
+                        String pid = "P" + rnd.nextInt(PRODUCTS);
+                        int window = 1 + rnd.nextInt(days);
+                        switch (rnd.nextInt(4)) {
+                            case 0:
+                                sink += store.aggregateQuantity(pid, window);
+                                break;
+                            case 1:
+                                sink += store.aggregateVolume(pid, window);
+                                break;
+                            case 2:
+                                sink += store.aggregateAveragePrice(pid, window);
+                                break;
+                            default:
+                                sink += store.aggregateMaxPrice(pid, window);
+                                break;
+                        }
+                        n++;
+                    }
+                    if (sink == -1) System.out.println();
+                    reads.addAndGet(n);
+                }
+            }, "bench-reader-" + i);
+        }
+
+        for (Thread t : threads) t.start();
+        Thread.sleep(seconds * 1000L);
+        running = false;
+        for (Thread t : threads) t.join();
+
+        System.out.println(String.format("readers=%-3d addSale=%10.0f ops/s  queries=%10.0f ops/s",
+                readers, writes.get() / (double) seconds, reads.get() / (double) seconds));
+    }
+
+    private static void deleteRecursively(File f) throws IOException {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        if (!f.delete()) throw new IOException("Could not delete " + f);
+    }
+}
@@ -0,0 +1,38 @@
+package sd.server;
+
+import java.util.ArrayDeque;
+
+/**
+ * Per-connection task queue shared by every {@link RequestExecutor}. The lane's own monitor guards its
+ * tasks and scheduled flag; executors call these methods without holding any lock of their own.
+ * When {@link #add} returns true the caller owns the lane and must hand it to exactly one runner, which
+ * polls one task per turn and keeps the lane for as long as {@link #release} returns true. Unordered
+ * lanes are released before the task runs so another worker can take the next one; ordered lanes are
+ * released only after it has run.
+ */
+final class TaskLane {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    final boolean ordered;
+    private boolean scheduled;
+
+    TaskLane(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    synchronized boolean add(Runnable r) {
+        tasks.addLast(r);
+        if (scheduled) return false;
+        scheduled = true;
+        return true;
+    }
+
+    synchronized Runnable poll() {
+        return tasks.pollFirst();
+    }
+
+    synchronized boolean release() {
+        if (!tasks.isEmpty()) return true;
+        scheduled = false;
+        return false;
+    }
+}
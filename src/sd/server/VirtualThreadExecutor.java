@@ -0,0 +1,87 @@
+package sd.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+final class VirtualThreadExecutor implements RequestExecutor {
+    private final ThreadFactory factory;
+    private final int capacity;
+    private final AtomicInteger inFlight;
+    private final AtomicLong rejected;
+
+    VirtualThreadExecutor(ThreadFactory factory, int capacity) {
+        this.factory = factory;
+        this.capacity = Math.max(1, capacity);
+        this.inFlight = new AtomicInteger();
+        this.rejected = new AtomicLong();
+    }
+
+    static boolean isSupported() {
+        return virtualThreadFactory("virtual-") != null;
+    }
+
+    static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean execute(final TaskLane lane, final Runnable r) {
+        if (inFlight.incrementAndGet() > capacity) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (!lane.ordered) {
+            factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    runTask(r);
+                }
+            }).start();
+            return true;
+        }
+
+        if (lane.add(r)) {
+            factory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    do {
+                        runTask(lane.poll());
+                    } while (lane.release());
+                }
+            }).start();
+        }
+        return true;
+    }
+
+    private void runTask(Runnable r) {
+        try {
+            r.run();
+        } catch (Throwable t) {
+            System.err.println("ClientHandler.worker: " + t.getMessage());
+            t.printStackTrace(System.err);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int queueDepth() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long rejectedCount() {
+        return rejected.get();
+    }
+}
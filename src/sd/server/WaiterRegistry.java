@@ -0,0 +1,176 @@
+package sd.server;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+final class WaiterRegistry {
+    private static final class SimultaneousWaiter {
+        final String firstName;
+        final String secondName;
+        int first = -1;
+        int second = -1;
+        final CompletableFuture<Boolean> future;
+
+        SimultaneousWaiter(String firstName, String secondName) {
+            this.firstName = firstName;
+            this.secondName = secondName;
+            this.future = new CompletableFuture<>();
+        }
+    }
+
+    private final ProductDictionary dictionary;
+    private final Map<Integer, List<SimultaneousWaiter>> byMissingProduct = new HashMap<>();
+    private final Map<String, List<SimultaneousWaiter>> byUnknownProduct = new HashMap<>();
+    private final TreeMap<Integer, List<CompletableFuture<String>>> byRunLength = new TreeMap<>();
+    private List<Runnable> ready = new ArrayList<>();
+
+    WaiterRegistry(ProductDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    CompletableFuture<Boolean> awaitSimultaneous(String first, String second, BitSet soldToday) {
+        SimultaneousWaiter w = new SimultaneousWaiter(first, second);
+        if (!parkOnMissing(w, soldToday)) w.future.complete(true);
+        return w.future;
+    }
+
+    CompletableFuture<String> awaitConsecutive(int count) {
+        CompletableFuture<String> f = new CompletableFuture<>();
+        List<CompletableFuture<String>> list = byRunLength.get(count);
+        if (list == null) {
+            list = new ArrayList<>();
+            byRunLength.put(count, list);
+        }
+        list.add(f);
+        return f;
+    }
+
+    void removeSimultaneous(String first, String second, CompletableFuture<Boolean> future) {
+        removeParked(first, future);
+        if (!second.equals(first)) removeParked(second, future);
+    }
+
+    void removeConsecutive(int count, CompletableFuture<String> future) {
+        List<CompletableFuture<String>> list = byRunLength.get(count);
+        if (list == null) return;
+        list.remove(future);
+        if (list.isEmpty()) byRunLength.remove(count);
+    }
+
+    void productSold(int productCode, BitSet soldToday) {
+        List<SimultaneousWaiter> list = byMissingProduct.remove(productCode);
+        if (!byUnknownProduct.isEmpty()) {
+            List<SimultaneousWaiter> named = byUnknownProduct.remove(dictionary.name(productCode));
+            if (named != null) {
+                if (list == null) list = named;
+                else list.addAll(named);
+            }
+        }
+        if (list == null) return;
+        for (SimultaneousWaiter w : list) {
+            if (!parkOnMissing(w, soldToday)) completeLater(w.future, Boolean.TRUE);
+        }
+    }
+
+    int lowestRunThreshold() {
+        return byRunLength.isEmpty() ? Integer.MAX_VALUE : byRunLength.firstKey();
+    }
+
+    void runReached(int length, String product) {
+        NavigableMap<Integer, List<CompletableFuture<String>>> reached = byRunLength.headMap(length, true);
+        Iterator<List<CompletableFuture<String>>> it = reached.values().iterator();
+        while (it.hasNext()) {
+            for (CompletableFuture<String> f : it.next()) completeLater(f, product);
+            it.remove();
+        }
+    }
+
+    void dayClosed() {
+        for (List<SimultaneousWaiter> list : byMissingProduct.values()) {
+            for (SimultaneousWaiter w : list) completeLater(w.future, Boolean.FALSE);
+        }
+        byMissingProduct.clear();
+        for (List<SimultaneousWaiter> list : byUnknownProduct.values()) {
+            for (SimultaneousWaiter w : list) completeLater(w.future, Boolean.FALSE);
+        }
+        byUnknownProduct.clear();
+        for (List<CompletableFuture<String>> list : byRunLength.values()) {
+            for (CompletableFuture<String> f : list) completeLater(f, null);
+        }
+        byRunLength.clear();
+    }
+
+    List<Runnable> takeReady() {
+        if (ready.isEmpty()) return Collections.emptyList();
+        List<Runnable> taken = ready;
+        ready = new ArrayList<>();
+        return taken;
+    }
+
+    private <T> void completeLater(final CompletableFuture<T> future, final T value) {
+        ready.add(new Runnable() {
+            @Override
+            public void run() {
+                future.complete(value);
+            }
+        });
+    }
+
+    private boolean parkOnMissing(SimultaneousWaiter w, BitSet soldToday) {
+        if (w.first < 0) w.first = dictionary.lookup(w.firstName);
+        if (w.second < 0) w.second = dictionary.lookup(w.secondName);
+        if (!isSold(w.first, soldToday)) {
+            park(w.first, w.firstName, w);
+        } else if (!isSold(w.second, soldToday)) {
+            park(w.second, w.secondName, w);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isSold(int productCode, BitSet soldToday) {
+        return productCode >= 0 && soldToday.get(productCode);
+    }
+
+    private void park(int productCode, String productId, SimultaneousWaiter w) {
+        if (productCode < 0) park(byUnknownProduct, productId, w);
+        else park(byMissingProduct, productCode, w);
+    }
+
+    private static <K> void park(Map<K, List<SimultaneousWaiter>> parked, K key, SimultaneousWaiter w) {
+        List<SimultaneousWaiter> list = parked.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            parked.put(key, list);
+        }
+        list.add(w);
+    }
+
+    private void removeParked(String productId, CompletableFuture<Boolean> future) {
+        removeParked(byUnknownProduct, productId, future);
+        int productCode = dictionary.lookup(productId);
+        if (productCode >= 0) removeParked(byMissingProduct, productCode, future);
+    }
+
+    private static <K> void removeParked(Map<K, List<SimultaneousWaiter>> parked, K key, CompletableFuture<Boolean> future) {
+        List<SimultaneousWaiter> list = parked.get(key);
+        if (list == null) return;
+        Iterator<SimultaneousWaiter> it = list.iterator();
+        while (it.hasNext()) {
+            if (it.next().future == future) {
+                it.remove();
+                break;
+            }
+        }
+        if (list.isEmpty()) parked.remove(key);
+    }
+}